@@ -0,0 +1,260 @@
+/*
+ * ConvertedModel.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.eteks.sweethome3d.tools.OperatingSystem;
+
+/**
+ * A model converted to OBJ format and stored with its dependencies in a temporary zip file.
+ */
+class ConvertedModel {
+  private final File                zipFile;
+  private final String              objEntryName;
+  private final Map<String, String> materialUpdatedKeys;
+
+  private boolean                   metadataRead;
+  private float []                  bounds;
+  private int                       vertexCount;
+  private int                       triangleCount;
+  private long                      texturesSize;
+  private Map<Integer, Long>        compressedSizes;
+  private ConvertedModel            boundingBoxModel;
+
+  public ConvertedModel(File zipFile, String objEntryName, Map<String, String> materialUpdatedKeys) {
+    this.zipFile = zipFile;
+    this.objEntryName = objEntryName;
+    this.materialUpdatedKeys = materialUpdatedKeys;
+  }
+
+  /**
+   * Returns the zip file containing the OBJ file, its MTL file and its textures.
+   */
+  public File getZipFile() {
+    return this.zipFile;
+  }
+
+  /**
+   * Deletes the zip file of this model and the one of its bounding box model.
+   */
+  public synchronized void delete() {
+    this.zipFile.delete();
+    if (this.boundingBoxModel != null
+        && this.boundingBoxModel != this) {
+      this.boundingBoxModel.delete();
+      this.boundingBoxModel = null;
+    }
+  }
+
+  /**
+   * Returns the name of the OBJ entry in zip file.
+   */
+  public String getObjEntryName() {
+    return this.objEntryName;
+  }
+
+  /**
+   * Returns the material names renamed in the OBJ file, or <code>null</code> if no material was renamed.
+   */
+  public Map<String, String> getMaterialUpdatedKeys() {
+    return this.materialUpdatedKeys;
+  }
+
+  /**
+   * Returns the bounds of the OBJ model as an array containing its minimum x, y, z
+   * followed by its maximum x, y, z, or <code>null</code> if it doesn't contain any vertex.
+   */
+  public synchronized float [] getBounds() throws IOException {
+    readMetadata();
+    return this.bounds;
+  }
+
+  /**
+   * Returns the count of vertices in the OBJ model.
+   */
+  public synchronized int getVertexCount() throws IOException {
+    readMetadata();
+    return this.vertexCount;
+  }
+
+  /**
+   * Returns the count of triangles in the OBJ model, once its faces are triangulated.
+   */
+  public synchronized int getTriangleCount() throws IOException {
+    readMetadata();
+    return this.triangleCount;
+  }
+
+  /**
+   * Returns the total size in bytes of the textures used by the OBJ model.
+   */
+  public synchronized long getTexturesSize() throws IOException {
+    readMetadata();
+    return this.texturesSize;
+  }
+
+  /**
+   * Returns the size of the OBJ entry once compressed at the given level.
+   */
+  public synchronized long getCompressedSize(int compressionLevel) throws IOException {
+    if (this.compressedSizes == null) {
+      this.compressedSizes = new HashMap<Integer, Long>();
+    }
+    Long compressedSize = this.compressedSizes.get(compressionLevel);
+    if (compressedSize == null) {
+      final long [] size = {0};
+      OutputStream countingOut = new OutputStream() {
+          @Override
+          public void write(int b) {
+            size [0]++;
+          }
+
+          @Override
+          public void write(byte [] b, int off, int len) {
+            size [0] += len;
+          }
+        };
+      ZipFile zipFile = new ZipFile(this.zipFile);
+      Deflater deflater = new Deflater(compressionLevel, true);
+      try {
+        InputStream in = zipFile.getInputStream(zipFile.getEntry(this.objEntryName));
+        DeflaterOutputStream out = new DeflaterOutputStream(countingOut, deflater);
+        byte [] buffer = new byte [8192];
+        for (int length; (length = in.read(buffer)) != -1; ) {
+          out.write(buffer, 0, length);
+        }
+        out.finish();
+        in.close();
+      } finally {
+        deflater.end();
+        zipFile.close();
+      }
+      compressedSize = size [0];
+      this.compressedSizes.put(compressionLevel, compressedSize);
+    }
+    return compressedSize;
+  }
+
+  /**
+   * Returns a model made of the bounding box of this model, stored in a temporary zip file
+   * under the same OBJ entry name, or this model if it doesn't contain any vertex.
+   */
+  public synchronized ConvertedModel getBoundingBoxModel() throws IOException {
+    if (this.boundingBoxModel == null) {
+      float [] bounds = getBounds();
+      if (bounds == null) {
+        this.boundingBoxModel = this;
+      } else {
+        File boxFile = OperatingSystem.createTemporaryFile("model", ".zip");
+        ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(boxFile));
+        try {
+          zipOut.putNextEntry(new ZipEntry(this.objEntryName));
+          Writer writer = new OutputStreamWriter(zipOut, "ISO-8859-1");
+          writer.write("# Bounding box placeholder\n");
+          // Vertex i is at minimum or maximum x, y and z depending on bits 0, 1 and 2 of i
+          for (int i = 0; i < 8; i++) {
+            writer.write("v " + bounds [(i & 1) == 0 ? 0 : 3]
+                + " " + bounds [(i & 2) == 0 ? 1 : 4]
+                + " " + bounds [(i & 4) == 0 ? 2 : 5] + "\n");
+          }
+          // Faces oriented outwards
+          writer.write("f 1 3 4 2\nf 5 6 8 7\nf 1 2 6 5\nf 3 7 8 4\nf 1 5 7 3\nf 2 4 8 6\n");
+          writer.flush();
+          zipOut.closeEntry();
+        } finally {
+          zipOut.close();
+        }
+        this.boundingBoxModel = new ConvertedModel(boxFile, this.objEntryName, null);
+      }
+    }
+    return this.boundingBoxModel;
+  }
+
+  /**
+   * Reads the vertices and faces of the OBJ entry and the size of the other entries
+   * which aren't MTL files.
+   */
+  private void readMetadata() throws IOException {
+    if (this.metadataRead) {
+      return;
+    }
+    ZipFile zipFile = new ZipFile(this.zipFile);
+    try {
+      float [] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                         -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+      int vertexCount = 0;
+      int triangleCount = 0;
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          zipFile.getInputStream(zipFile.getEntry(this.objEntryName)), "ISO-8859-1"));
+      for (String line; (line = reader.readLine()) != null; ) {
+        if (line.startsWith("v ")) {
+          String [] values = line.trim().split("\\s+");
+          for (int i = 0; i < 3; i++) {
+            float value = Float.parseFloat(values [i + 1]);
+            bounds [i] = Math.min(bounds [i], value);
+            bounds [i + 3] = Math.max(bounds [i + 3], value);
+          }
+          vertexCount++;
+        } else if (line.startsWith("f ")) {
+          triangleCount += Math.max(0, line.trim().split("\\s+").length - 3);
+        }
+      }
+      reader.close();
+
+      long texturesSize = 0;
+      for (Enumeration<? extends ZipEntry> enumeration = zipFile.entries(); enumeration.hasMoreElements(); ) {
+        ZipEntry entry = enumeration.nextElement();
+        String name = entry.getName();
+        if (!entry.isDirectory()
+            && !name.equals(this.objEntryName)
+            && !name.toLowerCase().endsWith(".mtl")) {
+          texturesSize += entry.getSize();
+        }
+      }
+
+      this.bounds = vertexCount > 0 ? bounds : null;
+      this.vertexCount = vertexCount;
+      this.triangleCount = triangleCount;
+      this.texturesSize = texturesSize;
+      this.metadataRead = true;
+    } catch (NumberFormatException ex) {
+      throw new IOException("Invalid vertex in " + this.objEntryName);
+    } finally {
+      zipFile.close();
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * ConvertedModelLeases.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The converted models used by an export, which must be kept until the export is written.
+ * Models obtained from an export cache are released to the cache, the other ones are deleted.
+ * Models added once the leases are released, like the ones of conversions given up, are released at once.
+ */
+class ConvertedModelLeases {
+  private final ExportCache          exportCache;
+  private final List<ConvertedModel> convertedModels;
+  private boolean                    released;
+
+  public ConvertedModelLeases(ExportCache exportCache) {
+    this.exportCache = exportCache;
+    this.convertedModels = new ArrayList<ConvertedModel>();
+  }
+
+  /**
+   * Adds a converted model used by the export.
+   */
+  public synchronized void add(ConvertedModel convertedModel) {
+    if (this.released) {
+      release(convertedModel);
+    } else {
+      this.convertedModels.add(convertedModel);
+    }
+  }
+
+  /**
+   * Releases all the converted models used by the export.
+   */
+  public synchronized void releaseAll() {
+    this.released = true;
+    for (ConvertedModel convertedModel : this.convertedModels) {
+      release(convertedModel);
+    }
+    this.convertedModels.clear();
+  }
+
+  private void release(ConvertedModel convertedModel) {
+    if (this.exportCache != null) {
+      this.exportCache.releaseConvertedModel(convertedModel);
+    } else {
+      convertedModel.delete();
+    }
+  }
+}
@@ -0,0 +1,411 @@
+/*
+ * ExportCache.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import com.eteks.sweethome3d.model.Content;
+import com.eteks.sweethome3d.tools.ResourceURLContent;
+import com.eteks.sweethome3d.tools.URLContent;
+
+/**
+ * A cache shared by exports to reuse models converted to OBJ format and reduced images.
+ * Cached items are identified by the digest of their content, so that the same model or image
+ * found in different homes or in different exports of a home is converted only once.
+ * This class is thread safe. When their maximum size is reached, the least recently used
+ * converted models and images are removed from the cache.
+ */
+public class ExportCache {
+  private static final int ZIP_FILE_DIGESTS_MAX_COUNT = 32;
+
+  // Digests of the entries of the zip files recently hashed, identified by their URL,
+  // their modification date and their length, to avoid hashing them for each of their entries
+  private static final Map<String, SortedMap<String, byte []>> ZIP_FILE_DIGESTS =
+      new LinkedHashMap<String, SortedMap<String, byte []>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SortedMap<String, byte []>> eldest) {
+          return size() > ZIP_FILE_DIGESTS_MAX_COUNT;
+        }
+      };
+
+  private final long maxModelsSize;
+  private final long maxImagesSize;
+
+  private final Map<String, CachedModel>     convertedModels;
+  private final Map<ConvertedModel, Integer> modelLeases;
+  private final Map<String, byte []>         images;
+  private long                               modelsSize;
+  private long                               imagesSize;
+
+  /**
+   * Creates a cache able to keep 1 GB of converted models and 256 MB of images.
+   */
+  public ExportCache() {
+    this(1L << 30, 1L << 28);
+  }
+
+  public ExportCache(long maxModelsSize, long maxImagesSize) {
+    this.maxModelsSize = maxModelsSize;
+    this.maxImagesSize = maxImagesSize;
+    this.convertedModels = new LinkedHashMap<String, CachedModel>(16, 0.75f, true);
+    this.modelLeases = new HashMap<ConvertedModel, Integer>();
+    this.images = new LinkedHashMap<String, byte []>(16, 0.75f, true);
+  }
+
+  /**
+   * Returns the converted model matching the given key, or <code>null</code> if it's not cached.
+   * The returned model is leased to the caller and its files won't be deleted
+   * until it's released with {@link #releaseConvertedModel(ConvertedModel)}.
+   */
+  synchronized ConvertedModel getConvertedModel(String key) {
+    CachedModel cachedModel = this.convertedModels.get(key);
+    if (cachedModel == null) {
+      return null;
+    } else if (!cachedModel.convertedModel.getZipFile().exists()) {
+      // Ignore models deleted in temporary folder
+      this.convertedModels.remove(key);
+      this.modelsSize -= cachedModel.size;
+      return null;
+    } else {
+      acquireConvertedModel(cachedModel.convertedModel);
+      return cachedModel.convertedModel;
+    }
+  }
+
+  /**
+   * Stores the given converted model in this cache and leases it to the caller.
+   * Its files will be deleted once it's removed from cache and released by all the exports that use it.
+   */
+  synchronized void putConvertedModel(String key, ConvertedModel convertedModel) {
+    acquireConvertedModel(convertedModel);
+    long size = convertedModel.getZipFile().length();
+    CachedModel previousModel = this.convertedModels.put(key, new CachedModel(convertedModel, size));
+    if (previousModel != null) {
+      this.modelsSize -= previousModel.size;
+      if (previousModel.convertedModel != convertedModel) {
+        removeConvertedModel(previousModel.convertedModel);
+      }
+    }
+    this.modelsSize += size;
+    for (Iterator<CachedModel> it = this.convertedModels.values().iterator();
+         this.modelsSize > this.maxModelsSize && it.hasNext(); ) {
+      CachedModel removedModel = it.next();
+      if (removedModel.convertedModel != convertedModel) {
+        it.remove();
+        this.modelsSize -= removedModel.size;
+        removeConvertedModel(removedModel.convertedModel);
+      }
+    }
+  }
+
+  /**
+   * Releases a converted model leased by {@link #getConvertedModel(String)} or
+   * {@link #putConvertedModel(String, ConvertedModel)}, and deletes its files
+   * if it was removed from cache and isn't used anymore.
+   */
+  synchronized void releaseConvertedModel(ConvertedModel convertedModel) {
+    Integer leaseCount = this.modelLeases.get(convertedModel);
+    if (leaseCount != null) {
+      if (leaseCount > 1) {
+        this.modelLeases.put(convertedModel, leaseCount - 1);
+      } else {
+        this.modelLeases.remove(convertedModel);
+        if (!containsConvertedModel(convertedModel)) {
+          convertedModel.delete();
+        }
+      }
+    }
+  }
+
+  private void acquireConvertedModel(ConvertedModel convertedModel) {
+    Integer leaseCount = this.modelLeases.get(convertedModel);
+    this.modelLeases.put(convertedModel, leaseCount == null ? 1 : leaseCount + 1);
+  }
+
+  /**
+   * Deletes the files of a converted model removed from cache, unless an export still uses it.
+   */
+  private void removeConvertedModel(ConvertedModel convertedModel) {
+    if (!this.modelLeases.containsKey(convertedModel)) {
+      convertedModel.delete();
+    }
+  }
+
+  private boolean containsConvertedModel(ConvertedModel convertedModel) {
+    for (CachedModel cachedModel : this.convertedModels.values()) {
+      if (cachedModel.convertedModel == convertedModel) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the image matching the given key, or <code>null</code> if it's not cached.
+   */
+  synchronized byte [] getImage(String key) {
+    return this.images.get(key);
+  }
+
+  /**
+   * Stores the given image in this cache.
+   */
+  synchronized void putImage(String key, byte [] image) {
+    byte [] previousImage = this.images.put(key, image);
+    if (previousImage != null) {
+      this.imagesSize -= previousImage.length;
+    }
+    this.imagesSize += image.length;
+    for (Iterator<byte []> it = this.images.values().iterator();
+         this.imagesSize > this.maxImagesSize && it.hasNext(); ) {
+      byte [] removedImage = it.next();
+      if (removedImage != image) {
+        it.remove();
+        this.imagesSize -= removedImage.length;
+      }
+    }
+  }
+
+  /**
+   * Returns the count of converted models in this cache.
+   */
+  public synchronized int getConvertedModelCount() {
+    return this.convertedModels.size();
+  }
+
+  /**
+   * Returns the count of images in this cache.
+   */
+  public synchronized int getImageCount() {
+    return this.images.size();
+  }
+
+  /**
+   * Removes all the items of this cache and deletes the files of converted models
+   * which aren't used by an export.
+   */
+  public synchronized void clear() {
+    List<CachedModel> cachedModels = new ArrayList<CachedModel>(this.convertedModels.values());
+    this.convertedModels.clear();
+    for (CachedModel cachedModel : cachedModels) {
+      removeConvertedModel(cachedModel.convertedModel);
+    }
+    this.images.clear();
+    this.modelsSize = 0;
+    this.imagesSize = 0;
+  }
+
+  /**
+   * Returns the hexadecimal SHA-1 digest of the given bytes.
+   */
+  static String getDigest(byte [] bytes) {
+    MessageDigest messageDigest = getMessageDigest();
+    messageDigest.update(bytes);
+    return toHexadecimal(messageDigest.digest());
+  }
+
+  /**
+   * Returns the hexadecimal SHA-1 digest of the given content. If the content is a zip entry
+   * saved with other entries, the digest includes the names and the bytes of these entries,
+   * which may be required by a model. The digest of a content is the same before and after
+   * the home referencing it is saved.
+   */
+  static String getContentDigest(Content content) throws IOException {
+    MessageDigest messageDigest = getMessageDigest();
+    String entryDirectory = content instanceof URLContent
+        ? getSavedEntryDirectory((URLContent)content)
+        : null;
+    if (entryDirectory != null) {
+      URLContent urlContent = (URLContent)content;
+      String entryName = urlContent.getJAREntryName();
+      messageDigest.update(entryName.substring(entryDirectory.length()).getBytes("UTF-8"));
+      // Reuse the home file opened during an export
+      ZipFile homeZipFile = content instanceof LazyHomeURLContent
+          ? ((LazyHomeURLContent)content).getHomeZipFile()
+          : null;
+      SortedMap<String, byte []> entryDigests = getZipEntryDigests(urlContent.getJAREntryURL(), homeZipFile, entryDirectory);
+      for (Map.Entry<String, byte []> entry : entryDigests.entrySet()) {
+        messageDigest.update(entry.getKey().getBytes("UTF-8"));
+        messageDigest.update(entry.getValue());
+      }
+    } else {
+      messageDigest.update(getStreamDigest(content.openStream(), true));
+    }
+    return toHexadecimal(messageDigest.digest());
+  }
+
+  /**
+   * Returns the digests of the entries of the given zip file stored in <code>entryDirectory</code>,
+   * sorted by their name relative to that directory. The digests of the entries of a file
+   * which isn't a home file are computed once until that file is modified.
+   */
+  private static SortedMap<String, byte []> getZipEntryDigests(URL zipUrl, ZipFile homeZipFile,
+                                                              String entryDirectory) throws IOException {
+    SortedMap<String, byte []> entryDigests = new TreeMap<String, byte []>();
+    if (homeZipFile != null
+        || "file".equals(zipUrl.getProtocol())) {
+      ZipFile zipFile = homeZipFile;
+      String digestsKey = null;
+      if (zipFile == null) {
+        File file;
+        try {
+          file = new File(zipUrl.toURI());
+        } catch (URISyntaxException ex) {
+          throw new IOException("Invalid URL " + zipUrl);
+        }
+        digestsKey = zipUrl + "\n" + file.lastModified() + "\n" + file.length() + "\n" + entryDirectory;
+        synchronized (ZIP_FILE_DIGESTS) {
+          SortedMap<String, byte []> cachedDigests = ZIP_FILE_DIGESTS.get(digestsKey);
+          if (cachedDigests != null) {
+            return cachedDigests;
+          }
+        }
+        zipFile = new ZipFile(file);
+      }
+      try {
+        for (Enumeration<? extends ZipEntry> enumeration = zipFile.entries(); enumeration.hasMoreElements(); ) {
+          ZipEntry entry = enumeration.nextElement();
+          if (!entry.isDirectory()
+              && entry.getName().startsWith(entryDirectory)) {
+            entryDigests.put(entry.getName().substring(entryDirectory.length()),
+                getStreamDigest(zipFile.getInputStream(entry), true));
+          }
+        }
+      } finally {
+        if (zipFile != homeZipFile) {
+          zipFile.close();
+        }
+      }
+      if (digestsKey != null) {
+        entryDigests = Collections.unmodifiableSortedMap(entryDigests);
+        synchronized (ZIP_FILE_DIGESTS) {
+          ZIP_FILE_DIGESTS.put(digestsKey, entryDigests);
+        }
+      }
+    } else {
+      ZipInputStream zipIn = new ZipInputStream(zipUrl.openStream());
+      try {
+        for (ZipEntry entry; (entry = zipIn.getNextEntry()) != null; ) {
+          if (!entry.isDirectory()
+              && entry.getName().startsWith(entryDirectory)) {
+            entryDigests.put(entry.getName().substring(entryDirectory.length()),
+                getStreamDigest(zipIn, false));
+          }
+        }
+      } finally {
+        zipIn.close();
+      }
+    }
+    return entryDigests;
+  }
+
+  /**
+   * Returns the directory of the zip entries saved with the given content when its home is saved,
+   * or <code>null</code> if the content is saved alone. Follows the choices of
+   * <code>DefaultHomeOutputStream</code>, which stores in a home entry directory the sibling entries
+   * of a multi part resource, all the entries of another zip file, and keeps the first directory
+   * of a content coming from a home file.
+   */
+  private static String getSavedEntryDirectory(URLContent content) {
+    if (!content.isJAREntry()) {
+      return null;
+    }
+    String entryName = content.getJAREntryName();
+    if (content.getClass().getName().equals("com.eteks.sweethome3d.io.HomeURLContent")
+        || content instanceof LazyHomeURLContent) {
+      int slashIndex = entryName.indexOf('/');
+      return slashIndex > 0
+          ? entryName.substring(0, slashIndex + 1)
+          : null;
+    } else if (content instanceof ResourceURLContent) {
+      int lastSlashIndex = entryName.lastIndexOf('/');
+      return ((ResourceURLContent)content).isMultiPartResource() && lastSlashIndex != -1
+          ? entryName.substring(0, lastSlashIndex + 1)
+          : null;
+    } else {
+      return "";
+    }
+  }
+
+  private static byte [] getStreamDigest(InputStream in, boolean close) throws IOException {
+    MessageDigest messageDigest = getMessageDigest();
+    try {
+      byte [] buffer = new byte [8192];
+      for (int size; (size = in.read(buffer)) != -1; ) {
+        messageDigest.update(buffer, 0, size);
+      }
+      return messageDigest.digest();
+    } finally {
+      if (close) {
+        in.close();
+      }
+    }
+  }
+
+  private static MessageDigest getMessageDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      // Shouldn't happen since SHA-1 is available in all JREs
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static String toHexadecimal(byte [] bytes) {
+    StringBuilder hexadecimal = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hexadecimal.append(Character.forDigit((b >> 4) & 0xF, 16));
+      hexadecimal.append(Character.forDigit(b & 0xF, 16));
+    }
+    return hexadecimal.toString();
+  }
+
+  /**
+   * A converted model stored in cache with the size of its zip file when it was added.
+   */
+  private static class CachedModel {
+    private final ConvertedModel convertedModel;
+    private final long           size;
+
+    public CachedModel(ConvertedModel convertedModel, long size) {
+      this.convertedModel = convertedModel;
+      this.size = size;
+    }
+  }
+}
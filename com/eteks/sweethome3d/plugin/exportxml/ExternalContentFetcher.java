@@ -0,0 +1,197 @@
+/*
+ * ExternalContentFetcher.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches external content in parallel and keeps it in a cache directory.
+ * Only HTTP and HTTPS URLs are fetched. Content fetched with HTTP is revalidated with conditional requests based on
+ * the <code>ETag</code> and <code>Last-Modified</code> headers of the previous response.
+ */
+class ExternalContentFetcher {
+  private static final int CONNECT_TIMEOUT = 10000; // ms
+  private static final int READ_TIMEOUT    = 30000; // ms
+
+  private final File cacheDirectory;
+  private final int  threadCount;
+
+  public ExternalContentFetcher(File cacheDirectory, int threadCount) {
+    this.cacheDirectory = cacheDirectory;
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * Returns the local files where the content of the given URLs is available, fetched with
+   * at most <code>threadCount</code> concurrent requests.
+   */
+  public Map<URL, File> fetch(Collection<URL> urls) throws IOException {
+    Map<URL, File> files = new LinkedHashMap<URL, File>();
+    if (urls.isEmpty()) {
+      return files;
+    }
+    if (!this.cacheDirectory.exists()
+        && !this.cacheDirectory.mkdirs()) {
+      throw new IOException("Can't create cache directory " + this.cacheDirectory);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(urls.size(), this.threadCount));
+    try {
+      List<Future<File>> futures = new ArrayList<Future<File>>();
+      for (final URL url : urls) {
+        futures.add(executor.submit(new Callable<File>() {
+            public File call() throws IOException {
+              return fetch(url);
+            }
+          }));
+      }
+      int i = 0;
+      for (URL url : urls) {
+        files.put(url, futures.get(i++).get());
+      }
+      return files;
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("External content fetching interrupted");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException)ex.getCause();
+      } else if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ex.getCause();
+      } else {
+        throw new IOException("Couldn't fetch external content " + ex.getCause());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns a local file containing the data of the given HTTP or HTTPS URL.
+   */
+  private File fetch(URL url) throws IOException {
+    if (!ExternalURLContent.isFetchable(url)) {
+      throw new IOException("Can't fetch " + url);
+    }
+
+    String key = ExportCache.getDigest(url.toString().getBytes("UTF-8"));
+    File contentFile = new File(this.cacheDirectory, key + ".content");
+    File validatorsFile = new File(this.cacheDirectory, key + ".properties");
+    Properties validators = new Properties();
+    if (contentFile.exists() && validatorsFile.exists()) {
+      InputStream in = new FileInputStream(validatorsFile);
+      try {
+        validators.load(in);
+      } finally {
+        in.close();
+      }
+    }
+
+    URLConnection connection = url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    connection.setUseCaches(false);
+    if (connection instanceof HttpURLConnection) {
+      String eTag = validators.getProperty("ETag");
+      if (eTag != null) {
+        connection.setRequestProperty("If-None-Match", eTag);
+      }
+      String lastModified = validators.getProperty("Last-Modified");
+      if (lastModified != null) {
+        connection.setRequestProperty("If-Modified-Since", lastModified);
+      }
+      int responseCode = ((HttpURLConnection)connection).getResponseCode();
+      if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        ((HttpURLConnection)connection).disconnect();
+        return contentFile;
+      } else if (responseCode != HttpURLConnection.HTTP_OK) {
+        ((HttpURLConnection)connection).disconnect();
+        throw new IOException("Couldn't fetch " + url + ", response code " + responseCode);
+      }
+    }
+
+    // Write content in a temporary file renamed once complete
+    File downloadedFile = File.createTempFile(key, ".download", this.cacheDirectory);
+    try {
+      InputStream in = connection.getInputStream();
+      OutputStream out = new FileOutputStream(downloadedFile);
+      try {
+        byte [] buffer = new byte [8192];
+        for (int size; (size = in.read(buffer)) != -1; ) {
+          out.write(buffer, 0, size);
+        }
+      } finally {
+        out.close();
+        in.close();
+      }
+      // Replace cached files with atomic moves, because other exports, possibly run by other processes,
+      // may fetch the same URL in the same cache directory at the same time.
+      // Validators are deleted first to ensure they never describe another content
+      validatorsFile.delete();
+      Files.move(downloadedFile.toPath(), contentFile.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      Properties newValidators = new Properties();
+      if (connection.getHeaderField("ETag") != null) {
+        newValidators.setProperty("ETag", connection.getHeaderField("ETag"));
+      }
+      if (connection.getHeaderField("Last-Modified") != null) {
+        newValidators.setProperty("Last-Modified", connection.getHeaderField("Last-Modified"));
+      }
+      if (!newValidators.isEmpty()) {
+        File downloadedValidatorsFile = File.createTempFile(key, ".download", this.cacheDirectory);
+        try {
+          OutputStream validatorsOut = new FileOutputStream(downloadedValidatorsFile);
+          try {
+            newValidators.store(validatorsOut, url.toString());
+          } finally {
+            validatorsOut.close();
+          }
+          Files.move(downloadedValidatorsFile.toPath(), validatorsFile.toPath(),
+              StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+          downloadedValidatorsFile.delete();
+        }
+      }
+      return contentFile;
+    } finally {
+      downloadedFile.delete();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * ExternalURLContent.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+
+import com.eteks.sweethome3d.tools.URLContent;
+
+/**
+ * An URLContent referencing external data which will be embedded in exported file
+ * under <code>External/<i>hash</i>/</code> directory, where <i>hash</i> is computed from the fetched URL.
+ * If the URL is a jar URL, the whole zip file is fetched and all its entries are embedded
+ * in that directory, to keep the files an entry may refer to.
+ * Only HTTP and HTTPS URLs, possibly wrapped in a jar URL, may be fetched, to avoid embedding
+ * local files referenced by a home.
+ */
+class ExternalURLContent extends URLContent {
+  private static final long serialVersionUID = 1L;
+
+  private final URL    fetchedUrl;
+  private final String zipEntryName;
+  private final String embeddedEntryName;
+
+  /**
+   * Creates a content referencing external data, or throws a <code>MalformedURLException</code>
+   * if the fetched URL doesn't use HTTP or HTTPS protocol.
+   */
+  public ExternalURLContent(URL url) throws MalformedURLException, UnsupportedEncodingException {
+    super(url);
+    String fileName;
+    if ("jar".equals(url.getProtocol())) {
+      String file = url.getFile();
+      int separatorIndex = file.indexOf("!/");
+      this.fetchedUrl = new URL(file.substring(0, separatorIndex));
+      this.zipEntryName = URLDecoder.decode(file.substring(separatorIndex + 2).replace("+", "%2B"), "UTF-8");
+      fileName = this.zipEntryName;
+    } else {
+      this.fetchedUrl = url;
+      this.zipEntryName = null;
+      String path = url.getPath();
+      fileName = URLDecoder.decode(path.substring(path.lastIndexOf('/') + 1).replace("+", "%2B"), "UTF-8");
+      if (fileName.length() == 0) {
+        fileName = "content";
+      }
+    }
+    if (!isFetchable(this.fetchedUrl)) {
+      throw new MalformedURLException("Can't fetch " + this.fetchedUrl);
+    }
+    this.embeddedEntryName = getEmbeddedDirectory(this.fetchedUrl) + fileName;
+  }
+
+  /**
+   * Returns <code>true</code> if the given URL uses HTTP or HTTPS protocol.
+   */
+  static boolean isFetchable(URL url) {
+    return "http".equals(url.getProtocol())
+        || "https".equals(url.getProtocol());
+  }
+
+  /**
+   * Returns the directory where the content of the given fetched URL is embedded.
+   */
+  static String getEmbeddedDirectory(URL fetchedUrl) throws UnsupportedEncodingException {
+    return "External/" + ExportCache.getDigest(fetchedUrl.toString().getBytes("UTF-8")).substring(0, 16) + "/";
+  }
+
+  /**
+   * Returns the URL of the data to fetch.
+   */
+  public URL getFetchedUrl() {
+    return this.fetchedUrl;
+  }
+
+  /**
+   * Returns the name of the entry in the fetched zip file, or <code>null</code> if the URL isn't a jar URL.
+   */
+  public String getZipEntryName() {
+    return this.zipEntryName;
+  }
+
+  /**
+   * Returns the name of the entry of this content in exported file.
+   */
+  public String getEmbeddedEntryName() {
+    return this.embeddedEntryName;
+  }
+}
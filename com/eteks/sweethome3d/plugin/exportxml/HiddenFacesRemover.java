@@ -0,0 +1,405 @@
+/*
+ * HiddenFacesRemover.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.Group;
+import javax.media.j3d.IndexedGeometryArray;
+import javax.media.j3d.IndexedTriangleArray;
+import javax.media.j3d.Node;
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.TransformGroup;
+import javax.media.j3d.TriangleArray;
+
+/**
+ * Removes from home structure 3D objects the triangles that can't be seen:
+ * degenerated triangles, triangles facing down at ground level except in basement levels, and coincident
+ * triangles of solid objects facing each other, like the top of a wall and
+ * the bottom of the wall placed above it at the upper level.
+ * Only triangle arrays expressed in the coordinates system of the scene are handled,
+ * other geometries are left unchanged.
+ */
+class HiddenFacesRemover {
+  private static final float COORDINATES_PRECISION = 100f; // 1/100 cm
+  private static final float GROUND_EPSILON        = 1E-3f;
+
+  private List<ShapeGeometry> geometries = new ArrayList<ShapeGeometry>();
+
+  /**
+   * Adds the shapes of the given <code>node</code> to the ones that will be cleaned.
+   * @param solid <code>true</code> if the node is a closed object
+   */
+  public void addNode(Node node, boolean solid) {
+    addNode(node, solid, false);
+  }
+
+  /**
+   * Adds the shapes of the given <code>node</code> to the ones that will be cleaned.
+   * @param solid       <code>true</code> if the node is a closed object
+   * @param underground <code>true</code> if the node belongs to a level under ground, where faces
+   *                    facing down at ground level are visible, like the ceiling of a basement
+   */
+  public void addNode(Node node, boolean solid, boolean underground) {
+    if (node instanceof Shape3D) {
+      Shape3D shape = (Shape3D)node;
+      for (int i = 0; i < shape.numGeometries(); i++) {
+        if (shape.getGeometry(i) instanceof TriangleArray
+            || shape.getGeometry(i) instanceof IndexedTriangleArray) {
+          GeometryArray geometry = (GeometryArray)shape.getGeometry(i);
+          if ((geometry.getVertexFormat() & (GeometryArray.BY_REFERENCE
+                  | GeometryArray.INTERLEAVED | GeometryArray.USE_NIO_BUFFER)) == 0
+              && (geometry instanceof IndexedGeometryArray
+                    ? ((IndexedGeometryArray)geometry).getInitialIndexIndex() == 0
+                        && ((IndexedGeometryArray)geometry).getValidIndexCount() == ((IndexedGeometryArray)geometry).getIndexCount()
+                    : geometry.getInitialVertexIndex() == 0
+                        && geometry.getValidVertexCount() == geometry.getVertexCount())) {
+            this.geometries.add(new ShapeGeometry(shape, geometry, solid, underground));
+          }
+        }
+      }
+    } else if (node instanceof Group
+               && !(node instanceof TransformGroup)) {
+      // Ignore transformed children which aren't expressed in scene coordinates
+      Enumeration<?> enumeration = ((Group)node).getAllChildren();
+      while (enumeration.hasMoreElements()) {
+        addNode((Node)enumeration.nextElement(), solid, underground);
+      }
+    }
+  }
+
+  /**
+   * Removes the hidden triangles of the added nodes and returns the count of removed triangles.
+   */
+  public int removeHiddenFaces() {
+    Map<TriangleKey, List<TriangleReference>> solidTriangles = new HashMap<TriangleKey, List<TriangleReference>>();
+    float [] normal = new float [3];
+    for (ShapeGeometry shapeGeometry : this.geometries) {
+      float [] coordinates = shapeGeometry.coordinates;
+      for (int triangle = 0; triangle < shapeGeometry.triangleCount; triangle++) {
+        int i0 = shapeGeometry.getVertexIndex(triangle, 0) * 3;
+        int i1 = shapeGeometry.getVertexIndex(triangle, 1) * 3;
+        int i2 = shapeGeometry.getVertexIndex(triangle, 2) * 3;
+        computeNormal(coordinates, i0, i1, i2, normal);
+        float length = (float)Math.sqrt(normal [0] * normal [0] + normal [1] * normal [1] + normal [2] * normal [2]);
+        if (length < 1E-6) {
+          // Degenerated triangle
+          shapeGeometry.hiddenTriangles.set(triangle);
+        } else if (!shapeGeometry.underground
+                   && normal [1] / length < -0.999f
+                   && Math.abs(coordinates [i0 + 1]) < GROUND_EPSILON
+                   && Math.abs(coordinates [i1 + 1]) < GROUND_EPSILON
+                   && Math.abs(coordinates [i2 + 1]) < GROUND_EPSILON) {
+          // Triangle facing down at ground level
+          shapeGeometry.hiddenTriangles.set(triangle);
+        } else if (shapeGeometry.solid) {
+          TriangleKey key = new TriangleKey(coordinates, i0, i1, i2);
+          List<TriangleReference> references = solidTriangles.get(key);
+          if (references == null) {
+            references = new ArrayList<TriangleReference>(2);
+            solidTriangles.put(key, references);
+          }
+          references.add(new TriangleReference(shapeGeometry, triangle, key.isFacing(normal)));
+        }
+      }
+    }
+
+    // Hide coincident triangles of solid objects which face each other
+    for (List<TriangleReference> references : solidTriangles.values()) {
+      if (references.size() > 1) {
+        boolean facing = false;
+        boolean opposite = false;
+        for (TriangleReference reference : references) {
+          facing |= reference.facing;
+          opposite |= !reference.facing;
+        }
+        if (facing && opposite) {
+          for (TriangleReference reference : references) {
+            reference.shapeGeometry.hiddenTriangles.set(reference.triangle);
+          }
+        }
+      }
+    }
+
+    int removedTriangleCount = 0;
+    for (ShapeGeometry shapeGeometry : this.geometries) {
+      if (!shapeGeometry.hiddenTriangles.isEmpty()) {
+        removedTriangleCount += shapeGeometry.hiddenTriangles.cardinality();
+        Shape3D shape = shapeGeometry.shape;
+        int geometryIndex = shape.indexOfGeometry(shapeGeometry.geometry);
+        GeometryArray geometry = removeTriangles(shapeGeometry);
+        if (geometry != null) {
+          shape.setGeometry(geometry, geometryIndex);
+        } else {
+          shape.removeGeometry(geometryIndex);
+        }
+      }
+    }
+    this.geometries.clear();
+    return removedTriangleCount;
+  }
+
+  private static void computeNormal(float [] coordinates, int i0, int i1, int i2, float [] normal) {
+    float x1 = coordinates [i1] - coordinates [i0];
+    float y1 = coordinates [i1 + 1] - coordinates [i0 + 1];
+    float z1 = coordinates [i1 + 2] - coordinates [i0 + 2];
+    float x2 = coordinates [i2] - coordinates [i0];
+    float y2 = coordinates [i2 + 1] - coordinates [i0 + 1];
+    float z2 = coordinates [i2 + 2] - coordinates [i0 + 2];
+    normal [0] = y1 * z2 - z1 * y2;
+    normal [1] = z1 * x2 - x1 * z2;
+    normal [2] = x1 * y2 - y1 * x2;
+  }
+
+  /**
+   * Returns a copy of the geometry of <code>shapeGeometry</code> without its hidden triangles,
+   * or <code>null</code> if all its triangles are hidden.
+   */
+  private static GeometryArray removeTriangles(ShapeGeometry shapeGeometry) {
+    GeometryArray geometry = shapeGeometry.geometry;
+    int keptTriangleCount = shapeGeometry.triangleCount - shapeGeometry.hiddenTriangles.cardinality();
+    if (keptTriangleCount == 0) {
+      return null;
+    }
+    int format = geometry.getVertexFormat();
+    int texCoordSetCount = geometry.getTexCoordSetCount();
+    int [] texCoordSetMap = new int [geometry.getTexCoordSetMapLength()];
+    geometry.getTexCoordSetMap(texCoordSetMap);
+    int vertexCount = geometry.getVertexCount();
+    int textureCoordinatesLength = (format & GeometryArray.TEXTURE_COORDINATE_4) != 0
+        ? 4
+        : ((format & GeometryArray.TEXTURE_COORDINATE_3) != 0 ? 3 : 2);
+    int colorLength = (format & GeometryArray.WITH_ALPHA) != 0 ? 4 : 3;
+
+    if (geometry instanceof IndexedTriangleArray) {
+      // Keep vertices and filter indices
+      IndexedTriangleArray indexedGeometry = (IndexedTriangleArray)geometry;
+      IndexedTriangleArray newGeometry = new IndexedTriangleArray(vertexCount, format,
+          texCoordSetCount, texCoordSetMap, keptTriangleCount * 3);
+      float [] coordinates = shapeGeometry.coordinates;
+      newGeometry.setCoordinates(0, coordinates);
+      newGeometry.setCoordinateIndices(0, filterIndices(shapeGeometry, shapeGeometry.coordinateIndices));
+      boolean coordinateIndicesOnly = (format & GeometryArray.USE_COORD_INDEX_ONLY) != 0;
+      if ((format & GeometryArray.NORMALS) != 0) {
+        float [] normals = new float [vertexCount * 3];
+        indexedGeometry.getNormals(0, normals);
+        newGeometry.setNormals(0, normals);
+        if (!coordinateIndicesOnly) {
+          int [] normalIndices = new int [indexedGeometry.getIndexCount()];
+          indexedGeometry.getNormalIndices(0, normalIndices);
+          newGeometry.setNormalIndices(0, filterIndices(shapeGeometry, normalIndices));
+        }
+      }
+      if ((format & GeometryArray.COLOR_3) != 0) {
+        float [] colors = new float [vertexCount * colorLength];
+        indexedGeometry.getColors(0, colors);
+        newGeometry.setColors(0, colors);
+        if (!coordinateIndicesOnly) {
+          int [] colorIndices = new int [indexedGeometry.getIndexCount()];
+          indexedGeometry.getColorIndices(0, colorIndices);
+          newGeometry.setColorIndices(0, filterIndices(shapeGeometry, colorIndices));
+        }
+      }
+      for (int set = 0; set < texCoordSetCount; set++) {
+        float [] textureCoordinates = new float [vertexCount * textureCoordinatesLength];
+        indexedGeometry.getTextureCoordinates(set, 0, textureCoordinates);
+        newGeometry.setTextureCoordinates(set, 0, textureCoordinates);
+        if (!coordinateIndicesOnly) {
+          int [] textureCoordinateIndices = new int [indexedGeometry.getIndexCount()];
+          indexedGeometry.getTextureCoordinateIndices(set, 0, textureCoordinateIndices);
+          newGeometry.setTextureCoordinateIndices(set, 0, filterIndices(shapeGeometry, textureCoordinateIndices));
+        }
+      }
+      return newGeometry;
+    } else {
+      // Copy vertices of kept triangles
+      TriangleArray newGeometry = new TriangleArray(keptTriangleCount * 3, format,
+          texCoordSetCount, texCoordSetMap);
+      newGeometry.setCoordinates(0, filterVertices(shapeGeometry, shapeGeometry.coordinates, 3));
+      if ((format & GeometryArray.NORMALS) != 0) {
+        float [] normals = new float [vertexCount * 3];
+        geometry.getNormals(0, normals);
+        newGeometry.setNormals(0, filterVertices(shapeGeometry, normals, 3));
+      }
+      if ((format & GeometryArray.COLOR_3) != 0) {
+        float [] colors = new float [vertexCount * colorLength];
+        geometry.getColors(0, colors);
+        newGeometry.setColors(0, filterVertices(shapeGeometry, colors, colorLength));
+      }
+      for (int set = 0; set < texCoordSetCount; set++) {
+        float [] textureCoordinates = new float [vertexCount * textureCoordinatesLength];
+        geometry.getTextureCoordinates(set, 0, textureCoordinates);
+        newGeometry.setTextureCoordinates(set, 0, filterVertices(shapeGeometry, textureCoordinates, textureCoordinatesLength));
+      }
+      return newGeometry;
+    }
+  }
+
+  /**
+   * Returns the indices of the triangles which aren't hidden.
+   */
+  private static int [] filterIndices(ShapeGeometry shapeGeometry, int [] indices) {
+    int [] keptIndices = new int [(shapeGeometry.triangleCount - shapeGeometry.hiddenTriangles.cardinality()) * 3];
+    for (int triangle = 0, i = 0; triangle < shapeGeometry.triangleCount; triangle++) {
+      if (!shapeGeometry.hiddenTriangles.get(triangle)) {
+        System.arraycopy(indices, triangle * 3, keptIndices, i, 3);
+        i += 3;
+      }
+    }
+    return keptIndices;
+  }
+
+  /**
+   * Returns the vertex data of the triangles which aren't hidden.
+   */
+  private static float [] filterVertices(ShapeGeometry shapeGeometry, float [] data, int vertexLength) {
+    int triangleLength = vertexLength * 3;
+    float [] keptData = new float [(shapeGeometry.triangleCount - shapeGeometry.hiddenTriangles.cardinality()) * triangleLength];
+    for (int triangle = 0, i = 0; triangle < shapeGeometry.triangleCount; triangle++) {
+      if (!shapeGeometry.hiddenTriangles.get(triangle)) {
+        System.arraycopy(data, triangle * triangleLength, keptData, i, triangleLength);
+        i += triangleLength;
+      }
+    }
+    return keptData;
+  }
+
+  /**
+   * A triangle array of a shape with its coordinates.
+   */
+  private static class ShapeGeometry {
+    private final Shape3D       shape;
+    private final GeometryArray geometry;
+    private final boolean       solid;
+    private final boolean       underground;
+    private final float []      coordinates;
+    private final int []        coordinateIndices;
+    private final int           triangleCount;
+    private final BitSet        hiddenTriangles;
+
+    public ShapeGeometry(Shape3D shape, GeometryArray geometry, boolean solid, boolean underground) {
+      this.shape = shape;
+      this.geometry = geometry;
+      this.solid = solid;
+      this.underground = underground;
+      this.coordinates = new float [geometry.getVertexCount() * 3];
+      geometry.getCoordinates(0, this.coordinates);
+      if (geometry instanceof IndexedGeometryArray) {
+        this.coordinateIndices = new int [((IndexedGeometryArray)geometry).getIndexCount()];
+        ((IndexedGeometryArray)geometry).getCoordinateIndices(0, this.coordinateIndices);
+        this.triangleCount = this.coordinateIndices.length / 3;
+      } else {
+        this.coordinateIndices = null;
+        this.triangleCount = geometry.getVertexCount() / 3;
+      }
+      this.hiddenTriangles = new BitSet(this.triangleCount);
+    }
+
+    public int getVertexIndex(int triangle, int vertex) {
+      return this.coordinateIndices != null
+          ? this.coordinateIndices [triangle * 3 + vertex]
+          : triangle * 3 + vertex;
+    }
+  }
+
+  /**
+   * A triangle of a solid object.
+   */
+  private static class TriangleReference {
+    private final ShapeGeometry shapeGeometry;
+    private final int           triangle;
+    private final boolean       facing;
+
+    public TriangleReference(ShapeGeometry shapeGeometry, int triangle, boolean facing) {
+      this.shapeGeometry = shapeGeometry;
+      this.triangle = triangle;
+      this.facing = facing;
+    }
+  }
+
+  /**
+   * The rounded coordinates of the vertices of a triangle sorted in an order
+   * independent of the orientation of the triangle.
+   */
+  private static class TriangleKey {
+    private final int [] vertices;
+    private final int    hashCode;
+
+    public TriangleKey(float [] coordinates, int i0, int i1, int i2) {
+      int [][] points = {getRoundedPoint(coordinates, i0),
+                         getRoundedPoint(coordinates, i1),
+                         getRoundedPoint(coordinates, i2)};
+      Arrays.sort(points, new Comparator<int []>() {
+          public int compare(int [] point1, int [] point2) {
+            for (int i = 0; i < 3; i++) {
+              if (point1 [i] != point2 [i]) {
+                return point1 [i] < point2 [i] ? -1 : 1;
+              }
+            }
+            return 0;
+          }
+        });
+      this.vertices = new int [9];
+      for (int i = 0; i < 3; i++) {
+        System.arraycopy(points [i], 0, this.vertices, i * 3, 3);
+      }
+      this.hashCode = Arrays.hashCode(this.vertices);
+    }
+
+    private static int [] getRoundedPoint(float [] coordinates, int index) {
+      return new int [] {Math.round(coordinates [index] * COORDINATES_PRECISION),
+                         Math.round(coordinates [index + 1] * COORDINATES_PRECISION),
+                         Math.round(coordinates [index + 2] * COORDINATES_PRECISION)};
+    }
+
+    /**
+     * Returns <code>true</code> if the given normal goes in the same direction
+     * as the normal of the sorted vertices.
+     */
+    public boolean isFacing(float [] normal) {
+      float [] sortedNormal = new float [3];
+      float [] coordinates = new float [9];
+      for (int i = 0; i < coordinates.length; i++) {
+        coordinates [i] = this.vertices [i];
+      }
+      computeNormal(coordinates, 0, 3, 6, sortedNormal);
+      return sortedNormal [0] * normal [0] + sortedNormal [1] * normal [1] + sortedNormal [2] * normal [2] > 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof TriangleKey
+          && Arrays.equals(this.vertices, ((TriangleKey)obj).vertices);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * HomeBinaryReader.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A reader of the binary format written by {@link HomeBinaryWriter}.
+ * Attribute values are returned as <code>String</code>, <code>Float</code>, <code>Integer</code>,
+ * <code>Long</code>, <code>Boolean</code> or <code>float []</code> instances, depending on their encoding.
+ */
+public class HomeBinaryReader {
+  private HomeBinaryReader() {
+  }
+
+  /**
+   * Returns the root element read from the given stream.
+   */
+  public static Element read(InputStream in) throws IOException {
+    DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+    byte [] magicNumber = new byte [HomeBinaryWriter.MAGIC_NUMBER.length];
+    dataIn.readFully(magicNumber);
+    if (!Arrays.equals(magicNumber, HomeBinaryWriter.MAGIC_NUMBER)) {
+      throw new IOException("Not a binary home");
+    }
+    int version = dataIn.read();
+    if (version != HomeBinaryWriter.VERSION) {
+      throw new IOException("Unsupported binary home version " + version);
+    }
+
+    List<String> stringTable = new ArrayList<String>();
+    List<Element> openElements = new ArrayList<Element>();
+    Element root = null;
+    while (true) {
+      int tag = dataIn.read();
+      Element element = openElements.isEmpty()
+          ? null
+          : openElements.get(openElements.size() - 1);
+      switch (tag) {
+        case HomeBinaryWriter.END_DOCUMENT :
+          if (root == null || !openElements.isEmpty()) {
+            throw new IOException("Unexpected end of document");
+          }
+          return root;
+        case HomeBinaryWriter.START_ELEMENT :
+          Element child = new Element(readString(dataIn, stringTable));
+          if (element != null) {
+            element.children.add(child);
+          } else if (root == null) {
+            root = child;
+          } else {
+            throw new IOException("Several root elements");
+          }
+          openElements.add(child);
+          break;
+        case HomeBinaryWriter.END_ELEMENT :
+          checkElement(element);
+          openElements.remove(openElements.size() - 1);
+          break;
+        case HomeBinaryWriter.TEXT :
+          checkElement(element);
+          element.text = readString(dataIn, stringTable);
+          break;
+        case -1 :
+          throw new IOException("Unexpected end of stream");
+        default :
+          checkElement(element);
+          String name = readString(dataIn, stringTable);
+          element.attributes.put(name, readAttributeValue(dataIn, tag, stringTable));
+          break;
+      }
+    }
+  }
+
+  private static void checkElement(Element element) throws IOException {
+    if (element == null) {
+      throw new IOException("Token out of element");
+    }
+  }
+
+  private static Object readAttributeValue(DataInputStream in, int tag, List<String> stringTable) throws IOException {
+    switch (tag) {
+      case HomeBinaryWriter.STRING_ATTRIBUTE :
+        return readString(in, stringTable);
+      case HomeBinaryWriter.FLOAT_ATTRIBUTE :
+        return in.readFloat();
+      case HomeBinaryWriter.INTEGER_ATTRIBUTE :
+        return in.readInt();
+      case HomeBinaryWriter.LONG_ATTRIBUTE :
+        return in.readLong();
+      case HomeBinaryWriter.BOOLEAN_ATTRIBUTE :
+        return in.read() != 0;
+      case HomeBinaryWriter.FLOATS_ATTRIBUTE :
+        float [] values = new float [readCount(in)];
+        for (int i = 0; i < values.length; i++) {
+          values [i] = in.readFloat();
+        }
+        return values;
+      default :
+        throw new IOException("Unknown tag " + tag);
+    }
+  }
+
+  private static String readString(DataInputStream in, List<String> stringTable) throws IOException {
+    int index = readCount(in);
+    if (index < stringTable.size()) {
+      return stringTable.get(index);
+    } else if (index == stringTable.size()) {
+      byte [] bytes = new byte [readCount(in)];
+      in.readFully(bytes);
+      String s = new String(bytes, "UTF-8");
+      stringTable.add(s);
+      return s;
+    } else {
+      throw new IOException("Invalid string reference " + index);
+    }
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    int count = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      count |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return count;
+      }
+    }
+    throw new IOException("Invalid count");
+  }
+
+  /**
+   * An element read in a binary home.
+   */
+  public static class Element {
+    private final String              name;
+    private final Map<String, Object> attributes;
+    private final List<Element>       children;
+    private String                    text;
+
+    private Element(String name) {
+      this.name = name;
+      this.attributes = new LinkedHashMap<String, Object>();
+      this.children = new ArrayList<Element>();
+    }
+
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * Returns the attributes of this element in the order they were written.
+     */
+    public Map<String, Object> getAttributes() {
+      return Collections.unmodifiableMap(this.attributes);
+    }
+
+    public List<Element> getChildren() {
+      return Collections.unmodifiableList(this.children);
+    }
+
+    public String getText() {
+      return this.text;
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * HomeBinaryWriter.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.eteks.sweethome3d.io.XMLWriter;
+
+/**
+ * A writer which encodes in a compact binary format the elements written by a XML exporter,
+ * and optionally writes them also with a XML writer, to get both formats with one traversal.
+ * The binary format starts with the 4 bytes <code>SH3B</code> and a version byte equal to 1,
+ * followed by tokens made of a tag byte and their values, written in big endian order:
+ * <ul>
+ *   <li>{@link #START_ELEMENT} followed by the element name,</li>
+ *   <li>{@link #END_ELEMENT},</li>
+ *   <li>{@link #STRING_ATTRIBUTE} followed by the attribute name and its value,</li>
+ *   <li>{@link #FLOAT_ATTRIBUTE} followed by the attribute name and a 32 bit IEEE 754 float,</li>
+ *   <li>{@link #INTEGER_ATTRIBUTE} followed by the attribute name and a 32 bit integer,</li>
+ *   <li>{@link #LONG_ATTRIBUTE} followed by the attribute name and a 64 bit integer,</li>
+ *   <li>{@link #BOOLEAN_ATTRIBUTE} followed by the attribute name and a byte equal to 0 or 1,</li>
+ *   <li>{@link #FLOATS_ATTRIBUTE} followed by the attribute name, a count and as many 32 bit floats,
+ *       used for the space separated values of <code>modelRotation</code> and <code>modelBounds</code> attributes,</li>
+ *   <li>{@link #TEXT} followed by a string,</li>
+ *   <li>{@link #END_DOCUMENT} once the root element is ended.</li>
+ * </ul>
+ * Counts are unsigned variable length integers stored 7 bits per byte, least significant bits first,
+ * with the high bit set on all bytes but the last one.
+ * Names and strings are references to a string table built while reading: a reference is a count
+ * smaller than the size of the table for an already defined string, or equal to it for a new string,
+ * then followed by the count of its UTF-8 bytes and these bytes, and added to the table.
+ * Colors are written as integer attributes.
+ */
+public class HomeBinaryWriter extends XMLWriter {
+  public static final byte [] MAGIC_NUMBER = {'S', 'H', '3', 'B'};
+  public static final int     VERSION      = 1;
+
+  public static final int END_DOCUMENT      = 0;
+  public static final int START_ELEMENT     = 1;
+  public static final int END_ELEMENT       = 2;
+  public static final int STRING_ATTRIBUTE  = 3;
+  public static final int FLOAT_ATTRIBUTE   = 4;
+  public static final int INTEGER_ATTRIBUTE = 5;
+  public static final int LONG_ATTRIBUTE    = 6;
+  public static final int BOOLEAN_ATTRIBUTE = 7;
+  public static final int FLOATS_ATTRIBUTE  = 8;
+  public static final int TEXT              = 9;
+
+  private final DataOutputStream     out;
+  private final XMLWriter            xmlWriter;
+  private final Map<String, Integer> stringTable;
+  private int                        depth;
+
+  /**
+   * Creates a writer encoding elements in <code>out</code> stream.
+   */
+  public HomeBinaryWriter(OutputStream out) throws IOException {
+    this(out, null);
+  }
+
+  /**
+   * Creates a writer encoding elements in <code>out</code> stream,
+   * which will also write them with <code>xmlWriter</code> if it's not <code>null</code>.
+   */
+  public HomeBinaryWriter(OutputStream out, XMLWriter xmlWriter) throws IOException {
+    // Ignore XML header written by super class
+    super(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+      });
+    this.out = new DataOutputStream(out);
+    this.xmlWriter = xmlWriter;
+    this.stringTable = new HashMap<String, Integer>();
+    this.out.write(MAGIC_NUMBER);
+    this.out.write(VERSION);
+  }
+
+  public void writeStartElement(String element) throws IOException {
+    this.out.write(START_ELEMENT);
+    writeString(element);
+    this.depth++;
+    if (this.xmlWriter != null) {
+      this.xmlWriter.writeStartElement(element);
+    }
+  }
+
+  public void writeEndElement() throws IOException {
+    this.out.write(END_ELEMENT);
+    if (--this.depth == 0) {
+      this.out.write(END_DOCUMENT);
+    }
+    if (this.xmlWriter != null) {
+      this.xmlWriter.writeEndElement();
+    }
+  }
+
+  public void writeAttribute(String name, String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    float [] values = "modelRotation".equals(name) || "modelBounds".equals(name)
+        ? parseFloats(value)
+        : null;
+    if (values != null) {
+      this.out.write(FLOATS_ATTRIBUTE);
+      writeString(name);
+      writeCount(values.length);
+      for (float f : values) {
+        this.out.writeFloat(f);
+      }
+    } else {
+      this.out.write(STRING_ATTRIBUTE);
+      writeString(name);
+      writeString(value);
+    }
+    if (this.xmlWriter != null) {
+      this.xmlWriter.writeAttribute(name, value);
+    }
+  }
+
+  public void writeAttribute(String name, String value, String defaultValue) throws IOException {
+    if (value != null
+        && !value.equals(defaultValue)) {
+      writeAttribute(name, value);
+    }
+  }
+
+  public void writeIntegerAttribute(String name, int value) throws IOException {
+    this.out.write(INTEGER_ATTRIBUTE);
+    writeString(name);
+    this.out.writeInt(value);
+    if (this.xmlWriter != null) {
+      this.xmlWriter.writeIntegerAttribute(name, value);
+    }
+  }
+
+  public void writeIntegerAttribute(String name, int value, int defaultValue) throws IOException {
+    if (value != defaultValue) {
+      writeIntegerAttribute(name, value);
+    }
+  }
+
+  public void writeLongAttribute(String name, Long value) throws IOException {
+    if (value != null) {
+      this.out.write(LONG_ATTRIBUTE);
+      writeString(name);
+      this.out.writeLong(value);
+      if (this.xmlWriter != null) {
+        this.xmlWriter.writeLongAttribute(name, value);
+      }
+    }
+  }
+
+  public void writeFloatAttribute(String name, float value) throws IOException {
+    this.out.write(FLOAT_ATTRIBUTE);
+    writeString(name);
+    this.out.writeFloat(value);
+    if (this.xmlWriter != null) {
+      this.xmlWriter.writeFloatAttribute(name, value);
+    }
+  }
+
+  public void writeFloatAttribute(String name, float value, float defaultValue) throws IOException {
+    if (value != defaultValue) {
+      writeFloatAttribute(name, value);
+    }
+  }
+
+  public void writeFloatAttribute(String name, Float value) throws IOException {
+    if (value != null) {
+      writeFloatAttribute(name, value.floatValue());
+    }
+  }
+
+  public void writeBigDecimalAttribute(String name, BigDecimal value) throws IOException {
+    if (value != null) {
+      writeAttribute(name, value.toString());
+    }
+  }
+
+  public void writeBooleanAttribute(String name, boolean value, boolean defaultValue) throws IOException {
+    if (value != defaultValue) {
+      this.out.write(BOOLEAN_ATTRIBUTE);
+      writeString(name);
+      this.out.write(value ? 1 : 0);
+      if (this.xmlWriter != null) {
+        this.xmlWriter.writeBooleanAttribute(name, value, defaultValue);
+      }
+    }
+  }
+
+  public void writeColorAttribute(String name, Integer color) throws IOException {
+    if (color != null) {
+      this.out.write(INTEGER_ATTRIBUTE);
+      writeString(name);
+      this.out.writeInt(color);
+      if (this.xmlWriter != null) {
+        this.xmlWriter.writeColorAttribute(name, color);
+      }
+    }
+  }
+
+  public void writeText(String text) throws IOException {
+    this.out.write(TEXT);
+    writeString(text);
+    if (this.xmlWriter != null) {
+      this.xmlWriter.writeText(text);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    this.out.flush();
+    if (this.xmlWriter != null) {
+      this.xmlWriter.flush();
+    }
+  }
+
+  /**
+   * Writes a reference to the given string, followed by its bytes if it wasn't written yet.
+   */
+  private void writeString(String s) throws IOException {
+    Integer index = this.stringTable.get(s);
+    if (index != null) {
+      writeCount(index);
+    } else {
+      int newIndex = this.stringTable.size();
+      this.stringTable.put(s, newIndex);
+      writeCount(newIndex);
+      byte [] bytes = s.getBytes("UTF-8");
+      writeCount(bytes.length);
+      this.out.write(bytes);
+    }
+  }
+
+  private void writeCount(int count) throws IOException {
+    while ((count & ~0x7F) != 0) {
+      this.out.write((count & 0x7F) | 0x80);
+      count >>>= 7;
+    }
+    this.out.write(count);
+  }
+
+  /**
+   * Returns the floats separated by spaces in the given string, or <code>null</code> if it contains other data.
+   */
+  private static float [] parseFloats(String value) {
+    String [] strings = value.split(" ");
+    float [] values = new float [strings.length];
+    try {
+      for (int i = 0; i < strings.length; i++) {
+        values [i] = Float.parseFloat(strings [i]);
+      }
+      return values;
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * HomeXMLExportServer.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import com.eteks.sweethome3d.model.RecorderException;
+import com.eteks.sweethome3d.tools.OperatingSystem;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A resident local HTTP service which exports homes with {@link HomeXMLFileRecorder}
+ * and keeps converted models and reduced images in a shared {@link ExportCache} between requests.
+ * <ul>
+ *   <li><code>POST /export?flags=...&amp;compressionLevel=...&amp;imageMaxSize=...</code> with a SH3D file
+ *       as request body replies the exported zip file. All parameters are optional.</li>
+ *   <li><code>GET /status</code> replies the count of running and waiting exports and the size of caches.</li>
+ * </ul>
+ * At most <code>concurrency</code> exports run at the same time and at most <code>queueSize</code>
+ * other requests wait for their turn. Additional requests are rejected with a 503 status
+ * and a <code>Retry-After</code> header.
+ * <code>EMBED_EXTERNAL_CONTENT</code> flag is ignored unless the operator allows it, because it would
+ * let clients embed in the replied zip file the responses of servers reachable from this host.
+ */
+public class HomeXMLExportServer {
+  private static final int DEFAULT_FLAGS = HomeXMLFileRecorder.INCLUDE_VIEWER_DATA
+      | HomeXMLFileRecorder.INCLUDE_HOME_STRUCTURE
+      | HomeXMLFileRecorder.REDUCE_IMAGES
+      | HomeXMLFileRecorder.CONVERT_MODELS_TO_OBJ_FORMAT;
+
+  private final HttpServer      server;
+  private final ExecutorService executor;
+  private final ExportCache     exportCache;
+  private final Semaphore       admittedRequests;
+  private final Semaphore       runningExports;
+  private final int             concurrency;
+  private final int             queueSize;
+  private volatile boolean      externalContentEmbeddable;
+
+  /**
+   * Creates a server listening on the given <code>port</code> of loopback interface.
+   */
+  public HomeXMLExportServer(int port, int concurrency, int queueSize, ExportCache exportCache) throws IOException {
+    this.concurrency = concurrency;
+    this.queueSize = queueSize;
+    this.exportCache = exportCache;
+    this.admittedRequests = new Semaphore(concurrency + queueSize);
+    this.runningExports = new Semaphore(concurrency, true);
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), queueSize);
+    // Requests are limited by admittedRequests semaphore
+    this.executor = Executors.newCachedThreadPool();
+    this.server.setExecutor(this.executor);
+    this.server.createContext("/export", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          handleExport(exchange);
+        }
+      });
+    this.server.createContext("/status", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          handleStatus(exchange);
+        }
+      });
+  }
+
+  public void start() {
+    this.server.start();
+  }
+
+  /**
+   * Stops this server, waiting at most <code>delay</code> seconds for running exports.
+   */
+  public void stop(int delay) {
+    this.server.stop(delay);
+    this.executor.shutdown();
+  }
+
+  /**
+   * Sets whether requests may set <code>EMBED_EXTERNAL_CONTENT</code> flag. <code>false</code> by default.
+   */
+  public void setExternalContentEmbeddable(boolean externalContentEmbeddable) {
+    this.externalContentEmbeddable = externalContentEmbeddable;
+  }
+
+  /**
+   * Returns the port on which this server listens.
+   */
+  public int getPort() {
+    return this.server.getAddress().getPort();
+  }
+
+  private void handleExport(HttpExchange exchange) throws IOException {
+    boolean responseAborted = false;
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        sendTextResponse(exchange, 405, "POST a SH3D file to export it");
+      } else if (!this.admittedRequests.tryAcquire()) {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendTextResponse(exchange, 503, "Too many export requests");
+      } else {
+        try {
+          Map<String, String> parameters = getQueryParameters(exchange);
+          int flags = getIntParameter(parameters, "flags", DEFAULT_FLAGS);
+          if (!this.externalContentEmbeddable) {
+            flags &= ~HomeXMLFileRecorder.EMBED_EXTERNAL_CONTENT;
+          }
+          int compressionLevel = getIntParameter(parameters, "compressionLevel", 9);
+          int imageMaxSize = getIntParameter(parameters, "imageMaxSize", 256);
+          File homeFile = OperatingSystem.createTemporaryFile("Home", ".sh3d");
+          try {
+            copy(exchange.getRequestBody(), new FileOutputStream(homeFile));
+            this.runningExports.acquire();
+            try {
+              HomeXMLFileRecorder recorder = new HomeXMLFileRecorder(compressionLevel, flags, imageMaxSize);
+              recorder.setExportCache(this.exportCache);
+              recorder.setContentReadLazily(true);
+              // Stream exported zip in a chunked response
+              exchange.getResponseHeaders().set("Content-Type", "application/zip");
+              exchange.sendResponseHeaders(200, 0);
+              // Until the response is complete, any failure must abort it: leaving this method
+              // with an exception without closing the exchange makes the server close the connection
+              // without the terminating chunk, so that the client detects a truncated response
+              // instead of accepting an incomplete zip file
+              responseAborted = true;
+              OutputStream out = exchange.getResponseBody();
+              try {
+                recorder.exportHome(homeFile, out, null);
+              } catch (RecorderException ex) {
+                throw new IOException("Export aborted", ex);
+              }
+              out.close();
+              responseAborted = false;
+            } finally {
+              this.runningExports.release();
+            }
+          } finally {
+            homeFile.delete();
+          }
+        } catch (NumberFormatException ex) {
+          sendTextResponse(exchange, 400, "Invalid parameter " + ex.getMessage());
+        } catch (InterruptedException ex) {
+          sendTextResponse(exchange, 503, "Export interrupted");
+        } finally {
+          this.admittedRequests.release();
+        }
+      }
+    } finally {
+      if (!responseAborted) {
+        exchange.close();
+      }
+    }
+  }
+
+  private void handleStatus(HttpExchange exchange) throws IOException {
+    try {
+      int runningExports = this.concurrency - this.runningExports.availablePermits();
+      int admittedRequests = this.concurrency + this.queueSize - this.admittedRequests.availablePermits();
+      sendTextResponse(exchange, 200,
+          "running=" + runningExports + "\n"
+          + "waiting=" + Math.max(0, admittedRequests - runningExports) + "\n"
+          + "concurrency=" + this.concurrency + "\n"
+          + "queueSize=" + this.queueSize + "\n"
+          + "cachedModels=" + this.exportCache.getConvertedModelCount() + "\n"
+          + "cachedImages=" + this.exportCache.getImageCount() + "\n");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static Map<String, String> getQueryParameters(HttpExchange exchange) throws IOException {
+    Map<String, String> parameters = new HashMap<String, String>();
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        int equalIndex = parameter.indexOf('=');
+        if (equalIndex > 0) {
+          parameters.put(URLDecoder.decode(parameter.substring(0, equalIndex), "UTF-8"),
+              URLDecoder.decode(parameter.substring(equalIndex + 1), "UTF-8"));
+        }
+      }
+    }
+    return parameters;
+  }
+
+  private static int getIntParameter(Map<String, String> parameters, String name, int defaultValue) {
+    String value = parameters.get(name);
+    if (value == null) {
+      return defaultValue;
+    } else {
+      return value.startsWith("0x")
+          ? Integer.parseInt(value.substring(2), 16)
+          : Integer.parseInt(value);
+    }
+  }
+
+  private static void sendTextResponse(HttpExchange exchange, int status, String text) throws IOException {
+    byte [] bytes = text.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    try {
+      byte [] buffer = new byte [8192];
+      for (int size; (size = in.read(buffer)) != -1; ) {
+        out.write(buffer, 0, size);
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+
+  /**
+   * Starts an export server. Optional arguments: port (8765 by default), count of concurrent exports
+   * (available processors by default) and count of waiting requests (16 by default).
+   * External content may be embedded in exports only if <code>com.eteks.sweethome3d.plugin.exportxml.embedExternalContent</code>
+   * system property is <code>true</code>.
+   */
+  public static void main(String [] args) throws IOException {
+    System.setProperty("java.awt.headless", "true");
+    // Avoid to keep opened the temporary files read with jar URLs once they're deleted
+    new URL("jar:file:/cache.zip!/").openConnection().setDefaultUseCaches(false);
+    int port = args.length > 0 ? Integer.parseInt(args [0]) : 8765;
+    int concurrency = args.length > 1 ? Integer.parseInt(args [1]) : Runtime.getRuntime().availableProcessors();
+    int queueSize = args.length > 2 ? Integer.parseInt(args [2]) : 16;
+    HomeXMLExportServer server = new HomeXMLExportServer(port, concurrency, queueSize, new ExportCache());
+    server.setExternalContentEmbeddable(Boolean.getBoolean("com.eteks.sweethome3d.plugin.exportxml.embedExternalContent"));
+    server.start();
+  }
+}
@@ -22,21 +22,47 @@ package com.eteks.sweethome3d.plugin.exportxml;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Transparency;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -55,15 +81,20 @@ import com.eteks.sweethome3d.j3d.Ground3D;
 import com.eteks.sweethome3d.j3d.OBJWriter;
 import com.eteks.sweethome3d.j3d.Object3DBranchFactory;
 import com.eteks.sweethome3d.model.Content;
+import com.eteks.sweethome3d.model.Elevatable;
 import com.eteks.sweethome3d.model.Home;
+import com.eteks.sweethome3d.model.HomeFurnitureGroup;
+import com.eteks.sweethome3d.model.HomeLight;
 import com.eteks.sweethome3d.model.HomePieceOfFurniture;
 import com.eteks.sweethome3d.model.HomeRecorder;
 import com.eteks.sweethome3d.model.HomeTexture;
 import com.eteks.sweethome3d.model.InterruptedRecorderException;
 import com.eteks.sweethome3d.model.Level;
 import com.eteks.sweethome3d.model.RecorderException;
+import com.eteks.sweethome3d.model.Room;
 import com.eteks.sweethome3d.model.Selectable;
 import com.eteks.sweethome3d.model.UserPreferences;
+import com.eteks.sweethome3d.model.Wall;
 import com.eteks.sweethome3d.tools.OperatingSystem;
 import com.eteks.sweethome3d.tools.URLContent;
 import com.eteks.sweethome3d.viewcontroller.Object3DFactory;
@@ -74,19 +105,156 @@ public class HomeXMLFileRecorder implements HomeRecorder {
   public static final int INCLUDE_ICONS                = 0x0004;
   public static final int CONVERT_MODELS_TO_OBJ_FORMAT = 0x0008;
   public static final int REDUCE_IMAGES                = 0x0010;
+  public static final int OPTIMIZE_HOME_STRUCTURE      = 0x0020;
+  public static final int PACK_TEXTURES_IN_ATLAS       = 0x0040;
+  public static final int INCLUDE_IMAGE_PYRAMIDS       = 0x0080;
+  public static final int LAYOUT_FOR_RANGED_LOADING    = 0x0100;
+  public static final int REPRODUCIBLE_OUTPUT          = 0x0200;
+  public static final int SPLIT_HOME_XML_BY_LEVEL      = 0x0400;
+  public static final int INCLUDE_MODEL_METADATA       = 0x0800;
+  public static final int INCLUDE_BINARY_HOME          = 0x1000;
+  public static final int BINARY_HOME_ONLY             = 0x2000;
+  public static final int EMBED_EXTERNAL_CONTENT       = 0x4000;
+  public static final int MERGE_STATIC_FURNITURE       = 0x8000;
+
+  private static final float GROUND_MARGIN = 1000; // 10 m
+  private static final int   STREAM_BUFFER_SIZE = 65536;
+  private static final int   EXTERNAL_CONTENT_FETCH_THREAD_COUNT = 4;
+  // Date of entries in reproducible output, expressed in local time like dates stored in zip files
+  private static final long  REPRODUCIBLE_ENTRY_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
 
   private int compressionLevel;
   private int flags;
   private int imageMaxPreferredSize;
+  private int [] imagePyramidSizes;
+  private ExportCache exportCache;
+  private File preparedHomeStructureFile;
+  private boolean contentReadLazily;
+  private File externalContentCacheDirectory;
+  private long modelConversionMaxTime;
+  private int  modelMaxTriangleCount;
+  private final Map<String, String> modelConversionOffenders;
+  private Map<HomePieceOfFurniture, String> mergedPieceModels;
+  private ConvertedModelLeases convertedModelLeases;
+  private ZipFile exportedHomeZipFile;
 
   public HomeXMLFileRecorder(int compressionLevel, int flags) {
     this(compressionLevel, flags, 256);
   }
 
   public HomeXMLFileRecorder(int compressionLevel, int flags, int imageMaxPreferredSize) {
+    this(compressionLevel, flags, imageMaxPreferredSize, new int [] {256, 1024});
+  }
+
+  /**
+   * Creates a recorder which will export images at their original size or reduced to <code>imageMaxPreferredSize</code>
+   * with <code>REDUCE_IMAGES</code> flag, and also at the smaller sizes of <code>imagePyramidSizes</code>
+   * with <code>INCLUDE_IMAGE_PYRAMIDS</code> flag.
+   */
+  public HomeXMLFileRecorder(int compressionLevel, int flags, int imageMaxPreferredSize, int [] imagePyramidSizes) {
     this.compressionLevel = compressionLevel;
     this.flags = flags;
     this.imageMaxPreferredSize = imageMaxPreferredSize;
+    this.imagePyramidSizes = imagePyramidSizes.clone();
+    Arrays.sort(this.imagePyramidSizes);
+    this.modelConversionOffenders = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+  }
+
+  /**
+   * Sets the cache used to share converted models and reduced images between exports.
+   */
+  public void setExportCache(ExportCache exportCache) {
+    this.exportCache = exportCache;
+  }
+
+  /**
+   * Returns the cache used to share converted models and reduced images between exports.
+   */
+  public ExportCache getExportCache() {
+    return this.exportCache;
+  }
+
+  /**
+   * Converts the given <code>model</code> to OBJ format and stores it in the export cache
+   * to speed up a later export. Does nothing if no cache is set or if models aren't converted.
+   */
+  public void prepareModel(Content model) throws RecorderException {
+    if (this.exportCache != null
+        && (this.flags & CONVERT_MODELS_TO_OBJ_FORMAT) != 0
+        && model instanceof URLContent
+        && !((URLContent)model).getURL().toString().endsWith(".obj")) {
+      try {
+        ConvertedModel convertedModel = HomeXMLOptionalExporter.getConvertedModel(model, "model.obj", this.flags, this.exportCache);
+        this.exportCache.releaseConvertedModel(convertedModel);
+      } catch (InterruptedIOException ex) {
+        throw new InterruptedRecorderException("Prepare model");
+      } catch (IOException ex) {
+        throw new RecorderException("Couldn't convert model", ex);
+      }
+    }
+  }
+
+  /**
+   * Exports the structure of the given <code>home</code> at OBJ format and returns the temporary
+   * zip file where it's stored, to be able to pass it later to {@link #setPreparedHomeStructure(File)}.
+   */
+  public File prepareHomeStructure(Home home) throws RecorderException {
+    try {
+      return exportHomeStructure(home, new Object3DBranchFactory(), "Home.obj", this.flags);
+    } catch (InterruptedIOException ex) {
+      throw new InterruptedRecorderException("Prepare home structure");
+    } catch (IOException ex) {
+      throw new RecorderException("Couldn't export home structure", ex);
+    }
+  }
+
+  /**
+   * Sets the zip file returned by {@link #prepareHomeStructure(Home)} which should be used
+   * by next exports instead of computing home structure again. The caller is responsible
+   * to ensure that the structure still matches the exported home, and to delete the file.
+   */
+  public void setPreparedHomeStructure(File homeStructureFile) {
+    this.preparedHomeStructureFile = homeStructureFile;
+  }
+
+  /**
+   * Sets whether homes exported with <code>exportHome</code> methods should be read without
+   * their content, which will be read from the home file only when it's written in exported file.
+   * This mode is ignored when preferences are given or for home files without a serialized <code>Home</code> entry.
+   */
+  public void setContentReadLazily(boolean contentReadLazily) {
+    this.contentReadLazily = contentReadLazily;
+  }
+
+  /**
+   * Sets the directory where external content embedded with <code>EMBED_EXTERNAL_CONTENT</code> flag
+   * is cached between exports. If not set, a subdirectory of the temporary directory is used.
+   */
+  public void setExternalContentCacheDirectory(File externalContentCacheDirectory) {
+    this.externalContentCacheDirectory = externalContentCacheDirectory;
+  }
+
+  /**
+   * Sets the maximum time in milliseconds the conversion of a model to OBJ format may last,
+   * and the maximum count of triangles of a converted model, 0 meaning no limit.
+   * A model converted too slowly is exported in its original format without waiting for the end
+   * of its conversion, its time being counted from the start of its conversion.
+   * A converted model with too many triangles is replaced by its bounding box: as triangles are counted
+   * after conversion, this limit doesn't reduce conversion time or memory, it only selects placeholder models.
+   */
+  public void setModelConversionBudget(long maxTime, int maxTriangleCount) {
+    this.modelConversionMaxTime = maxTime;
+    this.modelMaxTriangleCount = maxTriangleCount;
+  }
+
+  /**
+   * Returns the entry names of the models which exceeded conversion budget during the last export,
+   * mapped to the reason why.
+   */
+  public Map<String, String> getModelConversionOffenders() {
+    synchronized (this.modelConversionOffenders) {
+      return new LinkedHashMap<String, String>(this.modelConversionOffenders);
+    }
   }
 
   public void writeHome(Home home, String exportedFileName) throws RecorderException {
@@ -111,13 +279,123 @@ public class HomeXMLFileRecorder implements HomeRecorder {
   }
 
   public void exportHome(File homeFile, File exportedFile, UserPreferences preferences) throws RecorderException {
+    exportHome(homeFile, new File [] {exportedFile}, new int [] {this.flags}, preferences);
+  }
+
+  /**
+   * Exports the given home file to several files, each one written with the flags at the same index
+   * in <code>exportFlags</code>. The home is read once, its structure is computed once for all
+   * the exports which require the same structure, and converted models and reduced images
+   * are shared among exports.
+   */
+  public void exportHome(File homeFile, File [] exportedFiles, int [] exportFlags,
+                         UserPreferences preferences) throws RecorderException {
+    if (exportedFiles.length != exportFlags.length) {
+      throw new IllegalArgumentException("Exported files and flags count differ");
+    }
+    Home home = readExportedHome(homeFile, preferences);
+    this.modelConversionOffenders.clear();
+    ExportCache exportCache = this.exportCache;
+    if (exportedFiles.length > 1
+        && exportCache == null) {
+      // Share converted models and reduced images among exports during this call
+      this.exportCache = new ExportCache(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+    // Home structures mapped to the flags used to build them
+    Map<Integer, File> homeStructureFiles = new HashMap<Integer, File>();
+    try {
+      for (int i = 0; i < exportedFiles.length; i++) {
+        OutputStream out = new FileOutputStream(exportedFiles [i]);
+        try {
+          writeExportedHome(home, out, exportFlags [i], homeStructureFiles);
+        } finally {
+          out.close();
+        }
+      }
+    } catch (InterruptedIOException ex) {
+      throw new InterruptedRecorderException("Save home to XML");
+    } catch (IOException ex) {
+      throw new RecorderException("Couldn't save home to XML", ex);
+    } finally {
+      deleteHomeStructureFiles(homeStructureFiles);
+      closeExportedHomeFile();
+      if (this.exportCache != exportCache) {
+        this.exportCache.clear();
+        this.exportCache = exportCache;
+      }
+    }
+  }
+
+  /**
+   * Exports the given home file to the given output stream, which isn't closed by this method.
+   * Exported data is written progressively to <code>out</code>, except with <code>LAYOUT_FOR_RANGED_LOADING</code> flag
+   * which requires to write first entries in a temporary file to compute their index.
+   */
+  public void exportHome(File homeFile, OutputStream out, UserPreferences preferences) throws RecorderException {
+    Home home = readExportedHome(homeFile, preferences);
+    this.modelConversionOffenders.clear();
+    Map<Integer, File> homeStructureFiles = new HashMap<Integer, File>();
+    try {
+      // Buffer exported data in a bounded buffer
+      OutputStream bufferedOut = new BufferedOutputStream(new NonClosingOutputStream(out), STREAM_BUFFER_SIZE);
+      writeExportedHome(home, bufferedOut, this.flags, homeStructureFiles);
+      bufferedOut.flush();
+    } catch (InterruptedIOException ex) {
+      throw new InterruptedRecorderException("Save home to XML");
+    } catch (IOException ex) {
+      throw new RecorderException("Couldn't save home to XML", ex);
+    } finally {
+      deleteHomeStructureFiles(homeStructureFiles);
+      closeExportedHomeFile();
+    }
+  }
+
+  /**
+   * Exports the given home file to the given channel, which isn't closed by this method.
+   */
+  public void exportHome(File homeFile, WritableByteChannel channel, UserPreferences preferences) throws RecorderException {
+    exportHome(homeFile, Channels.newOutputStream(channel), preferences);
+  }
+
+  private void deleteHomeStructureFiles(Map<Integer, File> homeStructureFiles) {
+    for (File homeStructureFile : homeStructureFiles.values()) {
+      if (homeStructureFile != this.preparedHomeStructureFile) {
+        homeStructureFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Closes the home file kept opened to read the content of the exported home.
+   */
+  private void closeExportedHomeFile() {
+    if (this.exportedHomeZipFile != null) {
+      try {
+        this.exportedHomeZipFile.close();
+      } catch (IOException ex) {
+        ex.printStackTrace();
+      }
+      this.exportedHomeZipFile = null;
+    }
+  }
+
+  /**
+   * Returns the home read from the given file.
+   */
+  private Home readExportedHome(File homeFile, UserPreferences preferences) throws RecorderException {
     DefaultHomeInputStream in = null;
-    Home home;
+    Home home = null;
     try {
-      // If preferences are not null replace home content by the one in preferences when it's the same
-      in = new DefaultHomeInputStream(homeFile,
-          ContentRecording.INCLUDE_ALL_CONTENT, null, preferences, preferences != null);
-      home = in.readHome();
+      if (this.contentReadLazily
+          && preferences == null) {
+        home = readHomeWithoutContent(homeFile);
+      }
+      if (home == null) {
+        // If preferences are not null replace home content by the one in preferences when it's the same
+        in = new DefaultHomeInputStream(homeFile,
+            ContentRecording.INCLUDE_ALL_CONTENT, null, preferences, preferences != null);
+        home = in.readHome();
+      }
     } catch (InterruptedIOException ex) {
       throw new InterruptedRecorderException("Save home to XML");
     } catch (IOException ex) {
@@ -134,71 +412,221 @@ public class HomeXMLFileRecorder implements HomeRecorder {
         }
       }
     }
+    return home;
+  }
+
+  /**
+   * Returns the home deserialized from the <code>Home</code> entry of the given file,
+   * with content referencing the entries of that file without reading them,
+   * or <code>null</code> if the file doesn't contain a <code>Home</code> entry.
+   * The file is kept opened until the end of the export to read the entries of that content.
+   */
+  private Home readHomeWithoutContent(File homeFile) throws IOException, ClassNotFoundException {
+    ZipFile zipFile = new ZipFile(homeFile);
+    Home home = null;
+    try {
+      ZipEntry homeEntry = zipFile.getEntry("Home");
+      if (homeEntry != null) {
+        ObjectInputStream in = new LazyContentObjectInputStream(
+            new BufferedInputStream(zipFile.getInputStream(homeEntry)), homeFile.toURI().toURL(), zipFile);
+        try {
+          home = (Home)in.readObject();
+        } finally {
+          in.close();
+        }
+      }
+      return home;
+    } finally {
+      if (home != null) {
+        this.exportedHomeZipFile = zipFile;
+      } else {
+        zipFile.close();
+      }
+    }
+  }
 
-    File homeStructureFile = null;
+  /**
+   * An object input stream which replaces the content saved in a home file
+   * by content referencing the entries of that file.
+   */
+  private static class LazyContentObjectInputStream extends ObjectInputStream {
+    // Prefix of the URLs of content saved by DefaultHomeOutputStream
+    private static final String SAVED_CONTENT_PREFIX = "file:temp!/";
+
+    private final URL     homeFileUrl;
+    private final ZipFile homeZipFile;
+
+    public LazyContentObjectInputStream(InputStream in, URL homeFileUrl, ZipFile homeZipFile) throws IOException {
+      super(in);
+      this.homeFileUrl = homeFileUrl;
+      this.homeZipFile = homeZipFile;
+      enableResolveObject(true);
+    }
+
+    @Override
+    protected Object resolveObject(Object obj) throws IOException {
+      if (obj instanceof URLContent) {
+        URL url = ((URLContent)obj).getURL();
+        if ("jar".equals(url.getProtocol())
+            && url.getFile().startsWith(SAVED_CONTENT_PREFIX)) {
+          String entryName = url.getFile().substring(SAVED_CONTENT_PREFIX.length());
+          return new LazyHomeURLContent(new URL("jar:" + this.homeFileUrl + "!/" + entryName), this.homeZipFile);
+        }
+      }
+      return obj;
+    }
+  }
+
+  /**
+   * An output stream which doesn't close the stream it filters.
+   */
+  private static class NonClosingOutputStream extends FilterOutputStream {
+    public NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte [] b, int off, int len) throws IOException {
+      this.out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  /**
+   * Writes the given <code>home</code> in <code>out</code> stream with the given flags.
+   */
+  private void writeExportedHome(Home home, OutputStream out, int exportFlags,
+                                 Map<Integer, File> homeStructureFiles) throws IOException {
+    File unindexedFile = null;
     ZipOutputStream zipOut = null;
+    Map<Level, File> mergedFurnitureFiles = null;
+    // Keep converted models until exported file is written
+    this.convertedModelLeases = new ConvertedModelLeases(this.exportCache);
     try {
       String homeStructure;
-      if ((this.flags & INCLUDE_HOME_STRUCTURE) != 0) {
+      File homeStructureFile = null;
+      if ((exportFlags & INCLUDE_HOME_STRUCTURE) != 0) {
         // Export home structure in a zipped OBJ file
         homeStructure = "HomeStructure/Home.obj";
-        homeStructureFile = exportHomeStructure(home, new Object3DBranchFactory(),
-            homeStructure.substring(homeStructure.lastIndexOf('/') + 1));
+        int structureFlags = exportFlags & OPTIMIZE_HOME_STRUCTURE;
+        homeStructureFile = homeStructureFiles.get(structureFlags);
+        if (homeStructureFile == null) {
+          if (this.preparedHomeStructureFile != null
+              && structureFlags == (this.flags & OPTIMIZE_HOME_STRUCTURE)) {
+            homeStructureFile = this.preparedHomeStructureFile;
+          } else {
+            homeStructureFile = exportHomeStructure(home, new Object3DBranchFactory(),
+                homeStructure.substring(homeStructure.lastIndexOf('/') + 1), exportFlags);
+          }
+          homeStructureFiles.put(structureFlags, homeStructureFile);
+        }
       } else {
         homeStructure = null;
       }
 
-      zipOut = new ZipOutputStream(new FileOutputStream(exportedFile));
+      if ((exportFlags & MERGE_STATIC_FURNITURE) != 0
+          && (exportFlags & INCLUDE_VIEWER_DATA) != 0) {
+        // Export static furniture merged in one OBJ file per level
+        mergedFurnitureFiles = exportMergedFurniture(home, new Object3DBranchFactory());
+        this.mergedPieceModels = new HashMap<HomePieceOfFurniture, String>();
+        for (HomePieceOfFurniture piece : home.getFurniture()) {
+          if (isMergedPiece(piece)) {
+            this.mergedPieceModels.put(piece, getMergedFurnitureDirectory(home, piece.getLevel()) + "/Furniture.obj");
+          }
+        }
+      }
+
+      if ((exportFlags & LAYOUT_FOR_RANGED_LOADING) != 0) {
+        // Write entries in a temporary file to be able to index them
+        unindexedFile = OperatingSystem.createTemporaryFile("export", ".zip");
+        zipOut = new ZipOutputStream(new FileOutputStream(unindexedFile));
+      } else {
+        zipOut = new ZipOutputStream(new NonClosingOutputStream(out));
+      }
       zipOut.setLevel(this.compressionLevel);
-      // Export home to XML
-      zipOut.putNextEntry(new ZipEntry("Home.xml"));
-      XMLWriter writer = new XMLWriter(zipOut);
       String homeName = null;
       if (home.getName() != null) {
         homeName = new File(home.getName()).getName();
       }
-      Set<Content> referencedContents = writeHomeToXML(writer, home, homeName, homeStructure, this.flags);
-      writer.flush();
-      zipOut.closeEntry();
+      Set<Content> referencedContents;
+      if ((exportFlags & SPLIT_HOME_XML_BY_LEVEL) != 0
+          && (exportFlags & INCLUDE_VIEWER_DATA) != 0) {
+        referencedContents = writeHomeToShardedXML(zipOut, home, homeName, homeStructure, exportFlags);
+      } else if ((exportFlags & (INCLUDE_BINARY_HOME | BINARY_HOME_ONLY)) != 0) {
+        referencedContents = writeHomeToBinary(zipOut, home, homeName, homeStructure, exportFlags);
+      } else {
+        // Export home to XML
+        zipOut.putNextEntry(createZipEntry("Home.xml", exportFlags));
+        XMLWriter writer = new XMLWriter(zipOut);
+        referencedContents = writeHomeToXML(writer, home, homeName, homeStructure, exportFlags);
+        writer.flush();
+        zipOut.closeEntry();
+      }
 
-      if ((this.flags & INCLUDE_HOME_STRUCTURE) != 0) {
+      if ((exportFlags & INCLUDE_HOME_STRUCTURE) != 0) {
         // Save Home.obj structure and its dependencies in HomeStructure directory
-        writeAllZipEntries(zipOut, homeStructure.substring(0, homeStructure.lastIndexOf('/')), homeStructureFile.toURI().toURL(), this.flags);
+        writeAllZipEntries(zipOut, homeStructure.substring(0, homeStructure.lastIndexOf('/')), homeStructureFile.toURI().toURL(), exportFlags);
+      }
+      if (mergedFurnitureFiles != null) {
+        // Save merged static furniture in HomeFurniture directory
+        for (Map.Entry<Level, File> entry : mergedFurnitureFiles.entrySet()) {
+          writeAllZipEntries(zipOut, getMergedFurnitureDirectory(home, entry.getKey()), entry.getValue().toURI().toURL(), exportFlags);
+        }
       }
       // Save content referenced by home XML entry taking into account export flags
+      Map<URL, File> externalFiles = fetchExternalContents(referencedContents);
+      Set<URL> embeddedExternalZipFiles = new HashSet<URL>();
       List<String> homeFileEntries = new ArrayList<String>();
       for (Content content : referencedContents) {
-        if (content instanceof RedirectedURLContent) {
+        if (content instanceof ExternalURLContent) {
+          ExternalURLContent externalContent = (ExternalURLContent)content;
+          URL localUrl = externalFiles.get(externalContent.getFetchedUrl()).toURI().toURL();
+          if (externalContent.getZipEntryName() == null) {
+            writeZipEntry(zipOut, externalContent.getEmbeddedEntryName(), new URLContent(localUrl), exportFlags, this.imageMaxPreferredSize);
+          } else if (embeddedExternalZipFiles.add(externalContent.getFetchedUrl())) {
+            // Write the entries of the fetched zip file under its embedded directory
+            String directory = ExternalURLContent.getEmbeddedDirectory(externalContent.getFetchedUrl());
+            writeAllZipEntries(zipOut, directory.substring(0, directory.length() - 1), localUrl, exportFlags);
+          }
+        } else if (content instanceof RedirectedURLContent) {
           String directoryName = ((RedirectedURLContent)content).getJAREntryName();
           directoryName = directoryName.substring(0, directoryName.indexOf('/'));
-          writeAllZipEntries(zipOut, directoryName, ((RedirectedURLContent)content).getTargetContent().getJAREntryURL(), this.flags);
+          writeAllZipEntries(zipOut, directoryName, ((RedirectedURLContent)content).getTargetContent().getJAREntryURL(), exportFlags);
         } else if (content instanceof URLContent) {
           HomeTexture skyTexture = home.getEnvironment().getSkyTexture();
           if (skyTexture != null && skyTexture.getImage().equals(content)) {
             // Reduce less sky texture image
-            writeContentZipEntries(zipOut, (URLContent)content, homeFileEntries, this.flags, this.imageMaxPreferredSize * 4);
+            writeContentZipEntries(zipOut, (URLContent)content, homeFileEntries, exportFlags, this.imageMaxPreferredSize * 4);
           } else {
-            writeContentZipEntries(zipOut, (URLContent)content, homeFileEntries, this.flags, this.imageMaxPreferredSize);
+            writeContentZipEntries(zipOut, (URLContent)content, homeFileEntries, exportFlags, this.imageMaxPreferredSize);
           }
         }
       }
-      zipOut.finish();
-    } catch (InterruptedIOException ex) {
-      throw new InterruptedRecorderException("Save home to XML");
-    } catch (IOException ex) {
-      throw new RecorderException("Couldn't save home to XML", ex);
-    } finally {
-      if (homeStructureFile != null) {
-        homeStructureFile.delete();
+      zipOut.close();
+      zipOut = null;
+      if (unindexedFile != null) {
+        // Copy entries to exported stream with an index listing entry byte ranges after Home.xml
+        ZipEntriesIndexWriter.copyWithIndex(unindexedFile, out);
       }
-
+    } finally {
       if (zipOut != null) {
-        try {
-          zipOut.close();
-        } catch (IOException ex) {
-          throw new RecorderException("Couldn't close home file", ex);
+        zipOut.close();
+      }
+      if (unindexedFile != null) {
+        unindexedFile.delete();
+      }
+      if (mergedFurnitureFiles != null) {
+        for (File mergedFurnitureFile : mergedFurnitureFiles.values()) {
+          mergedFurnitureFile.delete();
         }
       }
+      this.mergedPieceModels = null;
+      this.convertedModelLeases.releaseAll();
+      this.convertedModelLeases = null;
     }
   }
 
@@ -207,8 +635,125 @@ public class HomeXMLFileRecorder implements HomeRecorder {
    */
   protected Set<Content> writeHomeToXML(XMLWriter writer, Home home, String homeName, String homeStructure, int flags) throws IOException {
     HomeXMLOptionalExporter homeExporter = new HomeXMLOptionalExporter(home, homeName, homeStructure, flags);
+    if ((flags & INCLUDE_IMAGE_PYRAMIDS) != 0) {
+      homeExporter.setImagePyramidSizes(this.imagePyramidSizes);
+    }
+    homeExporter.setExportCache(this.exportCache);
+    homeExporter.setConvertedModelLeases(this.convertedModelLeases);
+    homeExporter.setCompressionLevel(this.compressionLevel);
+    homeExporter.setModelConversionBudget(this.modelConversionMaxTime, this.modelMaxTriangleCount);
+    homeExporter.setMergedPieceModels(this.mergedPieceModels);
     homeExporter.writeElement(writer, home);
-    return homeExporter.getReferencedContents();
+    this.modelConversionOffenders.putAll(homeExporter.getModelConversionOffenders());
+    if ((flags & LAYOUT_FOR_RANGED_LOADING) != 0) {
+      return homeExporter.getPrioritizedReferencedContents();
+    } else {
+      return homeExporter.getReferencedContents();
+    }
+  }
+
+  /**
+   * Writes the given <code>home</code> in a <code>Home.bin</code> entry encoded with {@link HomeBinaryWriter},
+   * preceded by a <code>Home.xml</code> entry written during the same traversal
+   * unless <code>BINARY_HOME_ONLY</code> flag is set, and returns the content that is required by this home.
+   */
+  private Set<Content> writeHomeToBinary(ZipOutputStream zipOut, Home home, String homeName,
+                                         String homeStructure, int flags) throws IOException {
+    Set<Content> referencedContents;
+    if ((flags & BINARY_HOME_ONLY) != 0) {
+      zipOut.putNextEntry(createZipEntry("Home.bin", flags));
+      HomeBinaryWriter writer = new HomeBinaryWriter(zipOut);
+      referencedContents = writeHomeToXML(writer, home, homeName, homeStructure, flags);
+      writer.flush();
+      zipOut.closeEntry();
+    } else {
+      zipOut.putNextEntry(createZipEntry("Home.xml", flags));
+      ByteArrayOutputStream binaryOut = new ByteArrayOutputStream();
+      HomeBinaryWriter writer = new HomeBinaryWriter(binaryOut, new XMLWriter(zipOut));
+      referencedContents = writeHomeToXML(writer, home, homeName, homeStructure, flags);
+      writer.flush();
+      zipOut.closeEntry();
+      zipOut.putNextEntry(createZipEntry("Home.bin", flags));
+      binaryOut.writeTo(zipOut);
+      zipOut.closeEntry();
+    }
+    return referencedContents;
+  }
+
+  /**
+   * Writes the given <code>home</code> in a <code>Home.xml</code> entry which references
+   * one XML entry per level containing its furniture, walls, rooms and labels,
+   * and returns the content that is required by this home. Level entries are computed in parallel.
+   */
+  private Set<Content> writeHomeToShardedXML(ZipOutputStream zipOut, final Home home, String homeName,
+                                             String homeStructure, int flags) throws IOException {
+    HomeXMLOptionalExporter homeExporter = new HomeXMLOptionalExporter(home, homeName, homeStructure, flags);
+    if ((flags & INCLUDE_IMAGE_PYRAMIDS) != 0) {
+      homeExporter.setImagePyramidSizes(this.imagePyramidSizes);
+    }
+    homeExporter.setExportCache(this.exportCache);
+    homeExporter.setConvertedModelLeases(this.convertedModelLeases);
+    homeExporter.setCompressionLevel(this.compressionLevel);
+    homeExporter.setModelConversionBudget(this.modelConversionMaxTime, this.modelMaxTriangleCount);
+    homeExporter.setMergedPieceModels(this.mergedPieceModels);
+    zipOut.putNextEntry(createZipEntry("Home.xml", flags));
+    XMLWriter writer = new XMLWriter(zipOut);
+    homeExporter.writeElement(writer, home);
+    writer.flush();
+    zipOut.closeEntry();
+
+    List<Level> shardLevels = homeExporter.getShardLevels();
+    List<String> shardEntryNames = new ArrayList<String>();
+    List<HomeXMLOptionalExporter> shardExporters = new ArrayList<HomeXMLOptionalExporter>();
+    for (Level level : shardLevels) {
+      shardEntryNames.add(homeExporter.getShardEntryName(level));
+      shardExporters.add(homeExporter.createShardExporter(level));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(shardLevels.size(), Runtime.getRuntime().availableProcessors())),
+        createWorkerThreadFactory("Home XML shard export"));
+    try {
+      List<Future<byte []>> shards = new ArrayList<Future<byte []>>();
+      for (final HomeXMLOptionalExporter shardExporter : shardExporters) {
+        shards.add(executor.submit(new Callable<byte []>() {
+            public byte [] call() throws IOException {
+              ByteArrayOutputStream out = new ByteArrayOutputStream();
+              XMLWriter writer = new XMLWriter(out);
+              shardExporter.writeElement(writer, home);
+              writer.flush();
+              return out.toByteArray();
+            }
+          }));
+      }
+      // Write shards in level order
+      for (int i = 0; i < shards.size(); i++) {
+        byte [] shard = shards.get(i).get();
+        zipOut.putNextEntry(createZipEntry(shardEntryNames.get(i), flags));
+        zipOut.write(shard);
+        zipOut.closeEntry();
+        homeExporter.addShardReferencedContents(shardExporters.get(i));
+      }
+      // Shard exporters share model conversion offenders with home exporter
+      this.modelConversionOffenders.putAll(homeExporter.getModelConversionOffenders());
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Home export interrupted");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException)ex.getCause();
+      } else if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ex.getCause();
+      } else {
+        throw new IOException("Couldn't write home level " + ex.getCause());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if ((flags & LAYOUT_FOR_RANGED_LOADING) != 0) {
+      return homeExporter.getPrioritizedReferencedContents();
+    } else {
+      return homeExporter.getReferencedContents();
+    }
   }
 
   /**
@@ -216,7 +761,7 @@ public class HomeXMLFileRecorder implements HomeRecorder {
    * and returns the temporary zip file where it's stored.
    */
   private File exportHomeStructure(Home home, Object3DFactory objectFactory,
-                                   String homeStructureObjName) throws IOException {
+                                   String homeStructureObjName, int exportFlags) throws IOException {
     // Clone home to be able to handle it independently
     home = home.clone();
     List<Level> levels = home.getLevels();
@@ -228,17 +773,244 @@ public class HomeXMLFileRecorder implements HomeRecorder {
 
     BranchGroup root = new BranchGroup();
     // Add 3D ground, walls, rooms and labels
-    root.addChild(new Ground3D(home, -0.5E5f, -0.5E5f, 1E5f, 1E5f, true));
+    if ((exportFlags & OPTIMIZE_HOME_STRUCTURE) != 0) {
+      // Limit ground to home bounds
+      Rectangle2D homeBounds = getHomeBounds(home);
+      root.addChild(new Ground3D(home, (float)homeBounds.getX() - GROUND_MARGIN, (float)homeBounds.getY() - GROUND_MARGIN,
+          (float)homeBounds.getWidth() + 2 * GROUND_MARGIN, (float)homeBounds.getHeight() + 2 * GROUND_MARGIN, true));
+    } else {
+      root.addChild(new Ground3D(home, -0.5E5f, -0.5E5f, 1E5f, 1E5f, true));
+    }
+    HiddenFacesRemover hiddenFacesRemover = (exportFlags & OPTIMIZE_HOME_STRUCTURE) != 0
+        ? new HiddenFacesRemover()
+        : null;
+    List<Selectable> items = new ArrayList<Selectable>();
     for (Selectable item : home.getSelectableViewableItems()) {
       if (!(item instanceof HomePieceOfFurniture)) {
-        root.addChild((Node)objectFactory.createObject3D(home, item, true));
+        items.add(item);
       }
     }
+    List<Node> objects3D = createObjects3D(home, items, objectFactory);
+    // Add 3D objects in the order of items to keep the same OBJ output
+    for (int i = 0; i < items.size(); i++) {
+      Node object3D = objects3D.get(i);
+      root.addChild(object3D);
+      if (hiddenFacesRemover != null) {
+        Selectable item = items.get(i);
+        Level level = item instanceof Elevatable
+            ? ((Elevatable)item).getLevel()
+            : null;
+        hiddenFacesRemover.addNode(object3D, item instanceof Wall, level != null && level.getElevation() < 0);
+      }
+    }
+    if (hiddenFacesRemover != null) {
+      hiddenFacesRemover.removeHiddenFaces();
+    }
     File tempZipFile = OperatingSystem.createTemporaryFile("HomeStructure", ".zip");
     OBJWriter.writeNodeInZIPFile(root, tempZipFile, 0, homeStructureObjName, "Home structure for HTML5 export");
     return tempZipFile;
   }
 
+  /**
+   * Exports at OBJ format the static pieces of the given <code>home</code> merged in one model
+   * per level, where faces are grouped by material, and returns the temporary zip files where they're stored.
+   */
+  private Map<Level, File> exportMergedFurniture(Home home, Object3DFactory objectFactory) throws IOException {
+    // Clone home to be able to handle it independently
+    Home clonedHome = home.clone();
+    List<Level> levels = clonedHome.getLevels();
+    for (int i = 0; i < levels.size(); i++) {
+      if (levels.get(i).isViewable()) {
+        levels.get(i).setVisible(true);
+      }
+    }
+    // Search merged pieces of each level, furniture of cloned home being in the same order
+    Map<Level, List<Selectable>> levelPieces = new LinkedHashMap<Level, List<Selectable>>();
+    List<HomePieceOfFurniture> furniture = home.getFurniture();
+    List<HomePieceOfFurniture> clonedFurniture = clonedHome.getFurniture();
+    for (int i = 0; i < furniture.size(); i++) {
+      HomePieceOfFurniture piece = furniture.get(i);
+      if (isMergedPiece(piece)) {
+        List<Selectable> pieces = levelPieces.get(piece.getLevel());
+        if (pieces == null) {
+          pieces = new ArrayList<Selectable>();
+          levelPieces.put(piece.getLevel(), pieces);
+        }
+        pieces.add(clonedFurniture.get(i));
+      }
+    }
+
+    Map<Level, File> mergedFurnitureFiles = new LinkedHashMap<Level, File>();
+    try {
+      for (Map.Entry<Level, List<Selectable>> entry : levelPieces.entrySet()) {
+        BranchGroup root = new BranchGroup();
+        for (Node piece3D : createObjects3D(clonedHome, entry.getValue(), objectFactory)) {
+          root.addChild(piece3D);
+        }
+        File tempZipFile = OperatingSystem.createTemporaryFile("HomeFurniture", ".zip");
+        OBJWriter.writeNodeInZIPFile(root, tempZipFile, 0, "Furniture.obj", "Static furniture for HTML5 export");
+        mergedFurnitureFiles.put(entry.getKey(), MaterialGroupsMerger.mergeGroups(tempZipFile, "Furniture.obj"));
+      }
+      return mergedFurnitureFiles;
+    } catch (IOException ex) {
+      for (File mergedFurnitureFile : mergedFurnitureFiles.values()) {
+        mergedFurnitureFile.delete();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the given piece is visible, can't be moved and isn't a door, a window,
+   * a light or a group, to be merged with <code>MERGE_STATIC_FURNITURE</code> flag.
+   */
+  private boolean isMergedPiece(HomePieceOfFurniture piece) {
+    return piece.isVisible()
+        && !piece.isMovable()
+        && !piece.isDoorOrWindow()
+        && !(piece instanceof HomeLight)
+        && !(piece instanceof HomeFurnitureGroup)
+        && (piece.getLevel() == null || piece.getLevel().isViewable());
+  }
+
+  /**
+   * Returns the directory of the merged static furniture at the given <code>level</code>.
+   */
+  private String getMergedFurnitureDirectory(Home home, Level level) {
+    return "HomeFurniture/" + (level != null ? "level" + home.getLevels().indexOf(level) : "home");
+  }
+
+  /**
+   * Returns the 3D objects matching the given <code>items</code> in the same order,
+   * computed in parallel since walls geometry may be long to compute.
+   * Items aren't thread safe because their points, shapes and areas are cached lazily,
+   * and the geometry of a wall or a room depends on the ones of other walls, rooms and pieces.
+   * As the home isn't modified during this call, these caches are the only state
+   * modified by the creation of 3D objects, except in model and texture managers which
+   * are thread safe. Therefore they're computed first in the calling thread for all the items
+   * of the home, so that worker threads only read them.
+   */
+  private List<Node> createObjects3D(final Home home, List<Selectable> items,
+                                     final Object3DFactory objectFactory) throws IOException {
+    int threadCount = Math.min(items.size(), Runtime.getRuntime().availableProcessors());
+    List<Node> objects3D = new ArrayList<Node>(items.size());
+    if (threadCount <= 1) {
+      for (Selectable item : items) {
+        objects3D.add((Node)objectFactory.createObject3D(home, item, true));
+      }
+      return objects3D;
+    }
+
+    computeItemCaches(home);
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount, createWorkerThreadFactory("Home 3D objects creation"));
+    try {
+      List<Future<Node>> futures = new ArrayList<Future<Node>>(items.size());
+      for (final Selectable item : items) {
+        futures.add(executor.submit(new Callable<Node>() {
+            public Node call() {
+              return (Node)objectFactory.createObject3D(home, item, true);
+            }
+          }));
+      }
+      for (Future<Node> future : futures) {
+        objects3D.add(future.get());
+      }
+      return objects3D;
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Home structure export interrupted");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ex.getCause();
+      } else if (ex.getCause() instanceof Error) {
+        throw (Error)ex.getCause();
+      } else {
+        throw new IOException("Couldn't build home structure " + ex.getCause());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns a factory of daemon threads running at the priority of the calling thread,
+   * so that work split among them, like the one done in the low priority thread
+   * of <code>HomeExportPreparer</code>, doesn't compete more with other threads.
+   */
+  private static ThreadFactory createWorkerThreadFactory(final String name) {
+    final int priority = Thread.currentThread().getPriority();
+    return new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, name);
+          thread.setPriority(priority);
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+  }
+
+  /**
+   * Computes the data cached lazily by the walls, the rooms and the furniture of the given <code>home</code>.
+   */
+  private void computeItemCaches(Home home) {
+    for (Wall wall : home.getWalls()) {
+      wall.getPoints();
+      wall.getPoints(true);
+    }
+    for (Room room : home.getRooms()) {
+      room.getArea();
+      room.isSingular();
+      room.isClockwise();
+    }
+    computePiecesCaches(home.getFurniture());
+  }
+
+  private void computePiecesCaches(List<HomePieceOfFurniture> furniture) {
+    for (HomePieceOfFurniture piece : furniture) {
+      piece.getPoints();
+      if (piece instanceof HomeFurnitureGroup) {
+        computePiecesCaches(((HomeFurnitureGroup)piece).getFurniture());
+      }
+    }
+  }
+
+  /**
+   * Returns the rectangle containing the viewable items of the given <code>home</code>.
+   */
+  private Rectangle2D getHomeBounds(Home home) {
+    Rectangle2D homeBounds = null;
+    for (Selectable item : home.getSelectableViewableItems()) {
+      for (float [] point : item.getPoints()) {
+        if (homeBounds == null) {
+          homeBounds = new Rectangle2D.Float(point [0], point [1], 0, 0);
+        } else {
+          homeBounds.add(point [0], point [1]);
+        }
+      }
+    }
+    if (homeBounds == null) {
+      homeBounds = new Rectangle2D.Float(0, 0, 0, 0);
+    }
+    return homeBounds;
+  }
+
+  /**
+   * Fetches concurrently the external contents among the given <code>contents</code>
+   * and returns the local files where their data is available.
+   */
+  private Map<URL, File> fetchExternalContents(Set<Content> contents) throws IOException {
+    Set<URL> fetchedUrls = new LinkedHashSet<URL>();
+    for (Content content : contents) {
+      if (content instanceof ExternalURLContent) {
+        fetchedUrls.add(((ExternalURLContent)content).getFetchedUrl());
+      }
+    }
+    File cacheDirectory = this.externalContentCacheDirectory;
+    if (cacheDirectory == null) {
+      cacheDirectory = new File(System.getProperty("java.io.tmpdir"), "ExportXMLExternalContent");
+    }
+    return new ExternalContentFetcher(cacheDirectory, EXTERNAL_CONTENT_FETCH_THREAD_COUNT).fetch(fetchedUrls);
+  }
+
   /**
    * Writes in <code>zipOut</code> stream one or more entries matching the content
    * <code>content</code> coming from a home file.
@@ -252,10 +1024,15 @@ public class HomeXMLFileRecorder implements HomeRecorder {
       URL zipUrl = urlContent.getJAREntryURL();
       String entryDirectory = entryName.substring(0, slashIndex + 1);
       // Write in home stream each zipped stream entry that is stored in the same directory
-      for (String zipEntryName : getZipUrlEntries(zipUrl, homeFileEntries)) {
+      ZipFile homeZipFile = urlContent instanceof LazyHomeURLContent
+          ? ((LazyHomeURLContent)urlContent).getHomeZipFile()
+          : null;
+      for (String zipEntryName : getZipUrlEntries(zipUrl, homeZipFile, homeFileEntries)) {
         if (zipEntryName.startsWith(entryDirectory)) {
-          URLContent siblingContent = new URLContent(new URL("jar:" + zipUrl + "!/"
-              + URLEncoder.encode(zipEntryName, "UTF-8").replace("+", "%20")));
+          URLContent siblingContent = urlContent instanceof LazyHomeURLContent
+              ? ((LazyHomeURLContent)urlContent).getSiblingContent(zipEntryName)
+              : new URLContent(new URL("jar:" + zipUrl + "!/"
+                    + URLEncoder.encode(zipEntryName, "UTF-8").replace("+", "%20")));
           writeZipEntry(zipOut, entryDirectory + zipEntryName.substring(slashIndex + 1), siblingContent, exportFlags, imageMaxSize);
         }
       }
@@ -297,8 +1074,11 @@ public class HomeXMLFileRecorder implements HomeRecorder {
     byte [] buffer = new byte [8192];
     InputStream contentIn = null;
     try {
-      zipOut.putNextEntry(new ZipEntry(entryName));
-      if ((exportFlags & REDUCE_IMAGES) != 0
+      zipOut.putNextEntry(createZipEntry(entryName, exportFlags));
+      byte [] imageBytes = null;
+      byte [] exportedImageBytes = null;
+      String imageDigest = null;
+      if ((exportFlags & (REDUCE_IMAGES | INCLUDE_IMAGE_PYRAMIDS)) != 0
           && content.isJAREntry()
           && (content.getJAREntryName().endsWith(".jpg")
               || content.getJAREntryName().endsWith(".png")
@@ -310,48 +1090,30 @@ public class HomeXMLFileRecorder implements HomeRecorder {
           contentOut.write(buffer, 0, size);
         }
         contentIn.close();
-        byte [] imageBytes = contentOut.toByteArray();
-
+        imageBytes = contentOut.toByteArray();
+        exportedImageBytes = imageBytes;
         contentIn = new ByteArrayInputStream(imageBytes);
-        ImageInputStream imageIn = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes));
-        for (Iterator<ImageReader> it = ImageIO.getImageReaders(imageIn);
-            it.hasNext(); ) {
-          ImageReader reader = (ImageReader)it.next();
-          if (reader != null) {
-            reader.setInput(imageIn);
-            int minIndex = reader.getMinIndex();
-            ImageTypeSpecifier rawImageType = reader.getRawImageType(minIndex);
-            boolean opaqueImage = rawImageType == null || rawImageType.getColorModel().getTransparency() == Transparency.OPAQUE;
-            // If image is larger than the max size or if it's a small opaque image not at JPEG format
-            // (nothing to spare for JPEG small images and too much quality loss for small transparent images)
-            if (reader.getWidth(minIndex) > imageMaxSize
-                || reader.getHeight(minIndex) > imageMaxSize
-                || !"JPEG".equalsIgnoreCase(reader.getFormatName())
-                   && opaqueImage) {
-              // Compute reduced opaque image
-              BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
-              BufferedImage reducedImage = new BufferedImage(
-                  Math.min(image.getWidth(), imageMaxSize),  Math.min(image.getHeight(), imageMaxSize),
-                  opaqueImage // Avoid image.getType() otherwise color profile of PNG images won't work when saved at JPEG format
-                      ? BufferedImage.TYPE_INT_RGB
-                      : BufferedImage.TYPE_INT_ARGB);
-              Graphics2D g2D = (Graphics2D)reducedImage.getGraphics();
-              g2D.drawImage(image.getScaledInstance(reducedImage.getWidth(), reducedImage.getHeight(), Image.SCALE_SMOOTH), 0, 0, null);
-              g2D.dispose();
-              ByteArrayOutputStream out = new ByteArrayOutputStream();
-              // Keep a favor for PNG for model textures and non opaque images
-              ImageIO.write(reducedImage, content.getURL().toString().endsWith(".png") || !opaqueImage ? "PNG" : "JPEG", out);
-              byte [] reducedImageBytes = out.toByteArray();
-              // Use reduced image if it's 80% smaller
-              if (reducedImageBytes.length < 0.8f * imageBytes.length) {
-                contentIn = new ByteArrayInputStream(reducedImageBytes);
-              }
-            }
-            // Stop iteration among readers
-            break;
+        if (this.exportCache != null) {
+          imageDigest = ExportCache.getDigest(imageBytes)
+              + (content.getURL().toString().endsWith(".png") ? ".png" : "");
+        }
+      }
+
+      if ((exportFlags & REDUCE_IMAGES) != 0
+          && imageBytes != null) {
+        byte [] reducedImageBytes = null;
+        if (imageDigest != null) {
+          reducedImageBytes = this.exportCache.getImage(imageDigest + "/" + imageMaxSize);
+        }
+        if (reducedImageBytes == null) {
+          reducedImageBytes = reduceImage(content, imageBytes, imageMaxSize);
+          if (imageDigest != null) {
+            this.exportCache.putImage(imageDigest + "/" + imageMaxSize, reducedImageBytes);
           }
         }
-      } else {
+        contentIn = new ByteArrayInputStream(reducedImageBytes);
+        exportedImageBytes = reducedImageBytes;
+      } else if (imageBytes == null) {
         contentIn = content.openStream();
       }
 
@@ -361,6 +1123,12 @@ public class HomeXMLFileRecorder implements HomeRecorder {
         zipOut.write(buffer, 0, size);
       }
       zipOut.closeEntry();
+
+      if ((exportFlags & INCLUDE_IMAGE_PYRAMIDS) != 0
+          && imageBytes != null) {
+        writeImagePyramidZipEntries(zipOut, entryName, content, imageBytes, exportedImageBytes, imageDigest, exportFlags,
+            (exportFlags & REDUCE_IMAGES) != 0 ? imageMaxSize : Integer.MAX_VALUE);
+      }
     } finally {
       if (contentIn != null) {
         contentIn.close();
@@ -369,10 +1137,163 @@ public class HomeXMLFileRecorder implements HomeRecorder {
   }
 
   /**
-   * Returns the list of entries contained in <code>zipUrl</code>.
+   * Returns the content of the given image reduced to <code>imageMaxSize</code>
+   * or <code>imageBytes</code> if its reduction isn't worth it.
+   */
+  private byte [] reduceImage(URLContent content, byte [] imageBytes, int imageMaxSize) throws IOException {
+    ImageInputStream imageIn = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes));
+    for (Iterator<ImageReader> it = ImageIO.getImageReaders(imageIn);
+        it.hasNext(); ) {
+      ImageReader reader = (ImageReader)it.next();
+      if (reader != null) {
+        reader.setInput(imageIn);
+        int minIndex = reader.getMinIndex();
+        ImageTypeSpecifier rawImageType = reader.getRawImageType(minIndex);
+        boolean opaqueImage = rawImageType == null || rawImageType.getColorModel().getTransparency() == Transparency.OPAQUE;
+        // If image is larger than the max size or if it's a small opaque image not at JPEG format
+        // (nothing to spare for JPEG small images and too much quality loss for small transparent images)
+        if (reader.getWidth(minIndex) > imageMaxSize
+            || reader.getHeight(minIndex) > imageMaxSize
+            || !"JPEG".equalsIgnoreCase(reader.getFormatName())
+               && opaqueImage) {
+          // Compute reduced opaque image
+          BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+          byte [] reducedImageBytes = getReducedImage(image,
+              Math.min(image.getWidth(), imageMaxSize),  Math.min(image.getHeight(), imageMaxSize),
+              opaqueImage, content.getURL().toString().endsWith(".png"));
+          // Use reduced image if it's 80% smaller
+          if (reducedImageBytes.length < 0.8f * imageBytes.length) {
+            return reducedImageBytes;
+          }
+        }
+        // Stop iteration among readers
+        break;
+      }
+    }
+    return imageBytes;
+  }
+
+  /**
+   * Returns a new zip entry with a fixed date if <code>exportFlags</code> requests a reproducible output.
    */
-  private List<String> getZipUrlEntries(URL zipUrl, List<String> zipUrlEntries) throws IOException {
-    if (zipUrlEntries.isEmpty()) {
+  private ZipEntry createZipEntry(String entryName, int exportFlags) {
+    ZipEntry entry = new ZipEntry(entryName);
+    if ((exportFlags & REPRODUCIBLE_OUTPUT) != 0) {
+      entry.setTime(REPRODUCIBLE_ENTRY_TIME);
+    }
+    return entry;
+  }
+
+  /**
+   * Writes in <code>zipOut</code> stream one entry for each size of the image pyramid, containing
+   * the given image reduced to that size, or <code>exportedImageBytes</code> if the image is already smaller,
+   * so that viewers can find the entries of all the sizes listed in exported home for each image.
+   */
+  private void writeImagePyramidZipEntries(ZipOutputStream zipOut, String entryName, URLContent content,
+                                           byte [] imageBytes, byte [] exportedImageBytes, String imageDigest,
+                                           int exportFlags, int imageMaxSize) throws IOException {
+    ImageInputStream imageIn = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes));
+    Iterator<ImageReader> it = ImageIO.getImageReaders(imageIn);
+    if (!it.hasNext()) {
+      // Not an image
+      return;
+    }
+    ImageReader reader = (ImageReader)it.next();
+    reader.setInput(imageIn);
+    int imageWidth = reader.getWidth(reader.getMinIndex());
+    int imageHeight = reader.getHeight(reader.getMinIndex());
+    reader.dispose();
+    int imageSize = Math.min(Math.max(imageWidth, imageHeight), imageMaxSize);
+    BufferedImage image = null;
+    for (int pyramidSize : this.imagePyramidSizes) {
+      if (pyramidSize >= imageSize) {
+        // Copy exported image which is already small enough
+        zipOut.putNextEntry(createZipEntry(getImagePyramidEntryName(entryName, pyramidSize), exportFlags));
+        zipOut.write(exportedImageBytes);
+        zipOut.closeEntry();
+      } else {
+        byte [] reducedImageBytes = null;
+        if (imageDigest != null) {
+          reducedImageBytes = this.exportCache.getImage(imageDigest + "@" + pyramidSize);
+        }
+        if (reducedImageBytes == null) {
+          if (image == null) {
+            image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+          }
+          // Keep image proportions
+          float scale = (float)pyramidSize / Math.max(imageWidth, imageHeight);
+          reducedImageBytes = getReducedImage(image,
+              Math.max(1, Math.round(imageWidth * scale)), Math.max(1, Math.round(imageHeight * scale)),
+              image.getColorModel().getTransparency() == Transparency.OPAQUE, content.getURL().toString().endsWith(".png"));
+          if (imageDigest != null) {
+            this.exportCache.putImage(imageDigest + "@" + pyramidSize, reducedImageBytes);
+          }
+        }
+        zipOut.putNextEntry(createZipEntry(getImagePyramidEntryName(entryName, pyramidSize), exportFlags));
+        zipOut.write(reducedImageBytes);
+        zipOut.closeEntry();
+      }
+    }
+  }
+
+  /**
+   * Returns the name of the entry of the image reduced at the given size,
+   * built by inserting <code>@size</code> before the extension of the image entry.
+   */
+  public static String getImagePyramidEntryName(String entryName, int size) {
+    int dotIndex = entryName.lastIndexOf('.');
+    if (dotIndex > entryName.lastIndexOf('/')) {
+      return entryName.substring(0, dotIndex) + "@" + size + entryName.substring(dotIndex);
+    } else {
+      return entryName + "@" + size;
+    }
+  }
+
+  /**
+   * Returns the content of the given image reduced to <code>width</code> x <code>height</code> pixels.
+   */
+  private byte [] getReducedImage(BufferedImage image, int width, int height,
+                                  boolean opaqueImage, boolean pngImage) throws IOException {
+    BufferedImage reducedImage = new BufferedImage(width, height,
+        opaqueImage // Avoid image.getType() otherwise color profile of PNG images won't work when saved at JPEG format
+            ? BufferedImage.TYPE_INT_RGB
+            : BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g2D = (Graphics2D)reducedImage.getGraphics();
+    g2D.drawImage(image.getScaledInstance(reducedImage.getWidth(), reducedImage.getHeight(), Image.SCALE_SMOOTH), 0, 0, null);
+    g2D.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // Keep a favor for PNG for model textures and non opaque images
+    ImageIO.write(reducedImage, pngImage || !opaqueImage ? "PNG" : "JPEG", out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the list of entries contained in <code>zipUrl</code>, read from <code>openedZipFile</code>
+   * if it's not <code>null</code>.
+   */
+  private List<String> getZipUrlEntries(URL zipUrl, ZipFile openedZipFile, List<String> zipUrlEntries) throws IOException {
+    if (zipUrlEntries.isEmpty()
+        && openedZipFile != null) {
+      for (Enumeration<? extends ZipEntry> enumeration = openedZipFile.entries(); enumeration.hasMoreElements(); ) {
+        zipUrlEntries.add(enumeration.nextElement().getName());
+      }
+    } else if (zipUrlEntries.isEmpty()
+        && "file".equals(zipUrl.getProtocol())) {
+      // Read only the central directory of zip files
+      ZipFile zipFile;
+      try {
+        zipFile = new ZipFile(new File(zipUrl.toURI()));
+      } catch (URISyntaxException ex) {
+        throw new IOException("Invalid URL " + zipUrl);
+      }
+      try {
+        for (Enumeration<? extends ZipEntry> enumeration = zipFile.entries(); enumeration.hasMoreElements(); ) {
+          zipUrlEntries.add(enumeration.nextElement().getName());
+        }
+      } finally {
+        zipFile.close();
+      }
+    } else if (zipUrlEntries.isEmpty()) {
       ZipInputStream zipIn = null;
       try {
         // Search all entries of zip url
@@ -21,15 +21,34 @@ package com.eteks.sweethome3d.plugin.exportxml;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
 
 import javax.media.j3d.Appearance;
 import javax.media.j3d.BranchGroup;
@@ -43,6 +62,7 @@ import com.eteks.sweethome3d.model.BackgroundImage;
 import com.eteks.sweethome3d.model.Camera;
 import com.eteks.sweethome3d.model.Content;
 import com.eteks.sweethome3d.model.DimensionLine;
+import com.eteks.sweethome3d.model.Elevatable;
 import com.eteks.sweethome3d.model.Home;
 import com.eteks.sweethome3d.model.HomeDoorOrWindow;
 import com.eteks.sweethome3d.model.HomeEnvironment;
@@ -69,26 +89,235 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
   private int                               flags;
   private HashSet<Content>                  referencedContents;
   private Map<Content, Map<String, String>> contentMaterialUpdatedKeys;
+  private Map<Content, ConvertedModel>      contentConvertedModels;
+  private int                               compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  private int []                            imagePyramidSizes;
+  private Map<Content, Float>               contentPriorities;
+  private HomePieceOfFurniture              writtenPiece;
+  private ExportCache                       exportCache;
+  private ConvertedModelLeases              convertedModelLeases;
+  private ConcurrentMap<String, ModelConversionTask> convertedModels;
+  private ThreadPoolExecutor                modelConversionExecutor;
+  private long                              modelConversionMaxTime;
+  private int                               modelMaxTriangleCount;
+  private ConcurrentMap<String, String>     modelConversionOffenders;
+  private Map<HomePieceOfFurniture, String> mergedPieceModels;
+  private List<Level>                       shardLevels;
+  private HomeXMLOptionalExporter           rootExporter;
+  private Level                             shardLevel;
 
   public HomeXMLOptionalExporter(Home home, String homeName, String homeStructure, int flags) {
     this.homeName = homeName;
     this.homeStructure = homeStructure;
     this.flags = flags;
-    this.referencedContents = new HashSet<Content>();
+    // Keep referenced contents in the order they're found to export them in a stable order
+    this.referencedContents = new LinkedHashSet<Content>();
     this.contentMaterialUpdatedKeys = new HashMap<Content, Map<String,String>>();
+    this.contentConvertedModels = new HashMap<Content, ConvertedModel>();
+    this.contentPriorities = new HashMap<Content, Float>();
+    this.convertedModels = new ConcurrentHashMap<String, ModelConversionTask>();
+    this.modelConversionOffenders = new ConcurrentHashMap<String, String>();
+  }
+
+  /**
+   * Creates an exporter of the items at the given <code>level</code> of home
+   * which shares ids and converted models with <code>rootExporter</code>.
+   */
+  private HomeXMLOptionalExporter(HomeXMLOptionalExporter rootExporter, Level level) {
+    this(null, rootExporter.homeName, rootExporter.homeStructure, rootExporter.flags);
+    this.rootExporter = rootExporter;
+    this.shardLevel = level;
+    this.exportCache = rootExporter.exportCache;
+    this.convertedModelLeases = rootExporter.convertedModelLeases;
+    this.compressionLevel = rootExporter.compressionLevel;
+    this.convertedModels = rootExporter.convertedModels;
+    this.modelConversionExecutor = rootExporter.modelConversionExecutor;
+    this.modelConversionMaxTime = rootExporter.modelConversionMaxTime;
+    this.modelMaxTriangleCount = rootExporter.modelMaxTriangleCount;
+    this.modelConversionOffenders = rootExporter.modelConversionOffenders;
+    this.mergedPieceModels = rootExporter.mergedPieceModels;
   }
 
   protected int getFlags() {
     return this.flags;
   }
 
+  /**
+   * Sets the maximum time in milliseconds a model conversion may last, and the maximum count of triangles
+   * of a converted model. 0 means no limit. A model converted too slowly is exported in its original format.
+   * The time of a conversion is counted once it started to run in one of the threads of this exporter,
+   * which are as many as available processors, plus one for each conversion given up
+   * that may still keep its thread busy.
+   * The count of triangles is known only once a model is converted, therefore it doesn't limit
+   * conversion time or memory: it only selects models replaced by their bounding box.
+   */
+  public void setModelConversionBudget(long maxTime, int maxTriangleCount) {
+    this.modelConversionMaxTime = maxTime;
+    this.modelMaxTriangleCount = maxTriangleCount;
+    if (maxTime > 0
+        && this.modelConversionExecutor == null) {
+      final int priority = Thread.currentThread().getPriority();
+      int threadCount = Runtime.getRuntime().availableProcessors();
+      this.modelConversionExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+          1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "Model conversion");
+              thread.setPriority(priority);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      // Let threads end once export is done
+      this.modelConversionExecutor.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  /**
+   * Returns the entry names of the models which exceeded conversion budget, mapped to the reason why.
+   */
+  public Map<String, String> getModelConversionOffenders() {
+    return Collections.unmodifiableMap(this.modelConversionOffenders);
+  }
+
+  /**
+   * Sets the entry names of the merged models where some pieces are baked with their transformation
+   * and their materials. These pieces will be written with a <code>mergedModel</code> attribute
+   * instead of their model, textures and materials.
+   */
+  public void setMergedPieceModels(Map<HomePieceOfFurniture, String> mergedPieceModels) {
+    this.mergedPieceModels = mergedPieceModels;
+  }
+
   public HashSet<Content> getReferencedContents() {
     return this.referencedContents;
   }
 
+  /**
+   * Returns the referenced contents sorted in the order they should be loaded by a viewer:
+   * first the contents which don't belong to furniture, then the models and textures
+   * of the largest pieces and finally furniture icons.
+   */
+  public Set<Content> getPrioritizedReferencedContents() {
+    List<Content> contents = new ArrayList<Content>(this.referencedContents);
+    Collections.sort(contents, new Comparator<Content>() {
+        public int compare(Content content1, Content content2) {
+          return Float.compare(contentPriorities.get(content2), contentPriorities.get(content1));
+        }
+      });
+    return new LinkedHashSet<Content>(contents);
+  }
+
+  /**
+   * Updates the priority of a referenced content with the one of the piece currently written.
+   */
+  private void updateContentPriority(Content content) {
+    float priority;
+    if (this.writtenPiece == null) {
+      priority = Float.MAX_VALUE;
+    } else if (content == this.writtenPiece.getIcon()
+        || content == this.writtenPiece.getPlanIcon()) {
+      priority = 0;
+    } else {
+      priority = this.writtenPiece.getWidth() * this.writtenPiece.getDepth() * this.writtenPiece.getHeight();
+    }
+    Float currentPriority = this.contentPriorities.get(content);
+    if (currentPriority == null || currentPriority < priority) {
+      this.contentPriorities.put(content, priority);
+    }
+  }
+
+  /**
+   * Returns the levels of the shards referenced by the home written with <code>SPLIT_HOME_XML_BY_LEVEL</code> flag,
+   * including <code>null</code> for items at no level.
+   */
+  public List<Level> getShardLevels() {
+    return Collections.unmodifiableList(this.shardLevels);
+  }
+
+  /**
+   * Returns a new exporter able to write in a separate document the furniture, walls, rooms and labels
+   * at the given <code>level</code>, once home was written by this exporter.
+   * Shard exporters may be run in parallel.
+   */
+  public HomeXMLOptionalExporter createShardExporter(Level level) {
+    HomeXMLOptionalExporter shardExporter = new HomeXMLOptionalExporter(this, level);
+    shardExporter.imagePyramidSizes = this.imagePyramidSizes;
+    return shardExporter;
+  }
+
+  /**
+   * Adds the contents referenced by the given shard exporter to the contents of this exporter.
+   */
+  public void addShardReferencedContents(HomeXMLOptionalExporter shardExporter) {
+    for (Content content : shardExporter.referencedContents) {
+      this.referencedContents.add(content);
+      Float priority = shardExporter.contentPriorities.get(content);
+      Float currentPriority = this.contentPriorities.get(content);
+      if (currentPriority == null || currentPriority < priority) {
+        this.contentPriorities.put(content, priority);
+      }
+    }
+  }
+
+  /**
+   * Returns the name of the entry where the shard of the given level is stored.
+   */
+  public String getShardEntryName(Level level) {
+    return "HomeShards/" + (level != null ? getId(level) : "home") + ".xml";
+  }
+
+  @Override
+  protected String getId(Object object) {
+    if (this.rootExporter != null) {
+      // Ids are shared by the root exporter and its shards
+      synchronized (this.rootExporter) {
+        return this.rootExporter.getId(object);
+      }
+    } else {
+      return super.getId(object);
+    }
+  }
+
+  /**
+   * Sets the compression level of exported entries, used to compute the compressed size
+   * of models written with <code>INCLUDE_MODEL_METADATA</code> flag.
+   */
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * Sets the cache used to reuse models converted to OBJ format.
+   */
+  public void setExportCache(ExportCache exportCache) {
+    this.exportCache = exportCache;
+  }
+
+  /**
+   * Sets the leases where are added the converted models used by this exporter, which should be
+   * released once the exported content is written. If not set, models got from export cache
+   * are released as soon as they're obtained.
+   */
+  void setConvertedModelLeases(ConvertedModelLeases convertedModelLeases) {
+    this.convertedModelLeases = convertedModelLeases;
+  }
+
+  /**
+   * Sets the sizes of the reduced images exported with each image,
+   * listed in the <code>imagePyramidSizes</code> attribute of the exported home.
+   * An entry is written for each size, even for images smaller than that size.
+   */
+  public void setImagePyramidSizes(int [] imagePyramidSizes) {
+    this.imagePyramidSizes = imagePyramidSizes;
+  }
+
   @Override
   protected void writeAttributes(XMLWriter writer, Home home) throws IOException {
     writer.writeAttribute("version", String.valueOf(home.getVersion()));
+    if (this.rootExporter != null) {
+      writer.writeAttribute("level", getId(this.shardLevel), null);
+      return;
+    }
     if (getFlags() != 0) {
       writer.writeAttribute("exportFlags", String.valueOf(getFlags()));
     }
@@ -98,6 +327,16 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
     if (this.homeStructure != null) {
       writer.writeAttribute("structure", this.homeStructure, null);
     }
+    if (this.imagePyramidSizes != null) {
+      StringBuilder sizes = new StringBuilder();
+      for (int size : this.imagePyramidSizes) {
+        if (sizes.length() > 0) {
+          sizes.append(' ');
+        }
+        sizes.append(size);
+      }
+      writer.writeAttribute("imagePyramidSizes", sizes.toString());
+    }
     writer.writeAttribute("camera", home.getCamera() == home.getObserverCamera() ? "observerCamera" : "topCamera");
     writer.writeAttribute("selectedLevel", getId(home.getSelectedLevel()), null);
     writer.writeFloatAttribute("wallHeight", home.getWallHeight());
@@ -112,7 +351,9 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
 
   @Override
   protected void writeChildren(XMLWriter writer, Home home) throws IOException {
-    if ((getFlags() & HomeXMLFileRecorder.INCLUDE_VIEWER_DATA) == 0) {
+    if (this.rootExporter != null) {
+      writeItems(writer, home, this.shardLevel);
+    } else if ((getFlags() & HomeXMLFileRecorder.INCLUDE_VIEWER_DATA) == 0) {
       super.writeChildren(writer, home);
     } else {
       // Export properties
@@ -141,20 +382,103 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
       for (Level level : home.getLevels()) {
         writeLevel(writer, level);
       }
-      // Write furniture elements
-      for (HomePieceOfFurniture piece : home.getFurniture()) {
+      if ((getFlags() & HomeXMLFileRecorder.SPLIT_HOME_XML_BY_LEVEL) != 0) {
+        // Reference the shards of each level, after having computed the ids they share
+        assignItemIds(home);
+        this.shardLevels = new ArrayList<Level>();
+        List<Level> levels = new ArrayList<Level>(home.getLevels());
+        levels.add(null);
+        for (Level level : levels) {
+          if (containsItems(home, level)) {
+            this.shardLevels.add(level);
+            writer.writeStartElement("shard");
+            writer.writeAttribute("level", getId(level), null);
+            writer.writeAttribute("content", getShardEntryName(level));
+            writer.writeEndElement();
+          }
+        }
+      } else {
+        writeItems(writer, home, null);
+      }
+    }
+  }
+
+  /**
+   * Writes the furniture, walls, rooms and labels of home at the given <code>level</code>,
+   * or all of them if this exporter doesn't write a shard.
+   */
+  private void writeItems(XMLWriter writer, Home home, Level level) throws IOException {
+    for (HomePieceOfFurniture piece : home.getFurniture()) {
+      if (isWrittenAtLevel(piece, level)) {
         writePieceOfFurniture(writer, piece);
       }
-      for (Wall wall : home.getWalls()) {
+    }
+    for (Wall wall : home.getWalls()) {
+      if (isWrittenAtLevel(wall, level)) {
         writeWall(writer, wall);
       }
-      for (Room room : home.getRooms()) {
+    }
+    for (Room room : home.getRooms()) {
+      if (isWrittenAtLevel(room, level)) {
         writeRoom(writer, room);
       }
-      for (Label label : home.getLabels()) {
-        if (label.getPitch() != null) {
-          writeLabel(writer, label);
-        }
+    }
+    for (Label label : home.getLabels()) {
+      if (label.getPitch() != null
+          && isWrittenAtLevel(label, level)) {
+        writeLabel(writer, label);
+      }
+    }
+  }
+
+  private boolean isWrittenAtLevel(Elevatable item, Level level) {
+    return this.rootExporter == null
+        || item.getLevel() == level;
+  }
+
+  /**
+   * Returns <code>true</code> if home contains items written in viewer data at the given <code>level</code>.
+   */
+  private boolean containsItems(Home home, Level level) {
+    for (HomePieceOfFurniture piece : home.getFurniture()) {
+      if (piece.getLevel() == level && piece.isVisible()) {
+        return true;
+      }
+    }
+    for (Wall wall : home.getWalls()) {
+      if (wall.getLevel() == level) {
+        return true;
+      }
+    }
+    for (Room room : home.getRooms()) {
+      if (room.getLevel() == level) {
+        return true;
+      }
+    }
+    for (Label label : home.getLabels()) {
+      if (label.getLevel() == level && label.getPitch() != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Computes the ids of the items written in shards in the same order as in a single document,
+   * so that shards written in parallel get the same ids.
+   */
+  private void assignItemIds(Home home) {
+    for (Wall wall : home.getWalls()) {
+      getId(wall);
+      getId(wall.getWallAtStart());
+      getId(wall.getWallAtEnd());
+    }
+    for (Room room : home.getRooms()) {
+      getId(room);
+    }
+    for (Label label : home.getLabels()) {
+      if (label.getPitch() != null) {
+        getId(label);
       }
     }
   }
@@ -197,7 +521,13 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
   protected void writePieceOfFurniture(XMLWriter writer, HomePieceOfFurniture piece) throws IOException {
     if ((getFlags() & HomeXMLFileRecorder.INCLUDE_VIEWER_DATA) == 0
         || piece.isVisible()) {
-      new PieceOfFurnitureOptionalExporter().writeElement(writer, piece);
+      HomePieceOfFurniture parentPiece = this.writtenPiece;
+      try {
+        this.writtenPiece = piece;
+        new PieceOfFurnitureOptionalExporter().writeElement(writer, piece);
+      } finally {
+        this.writtenPiece = parentPiece;
+      }
     }
   }
 
@@ -210,7 +540,17 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
       writer.writeAttribute("catalogId", piece.getCatalogId(), null);
       writer.writeAttribute("name", piece.getName());
       writer.writeAttribute("creator", piece.getCreator(), null);
-      writer.writeAttribute("model", getModelExportedContentName(piece, piece.getModel()), null);
+      String mergedModel = mergedPieceModels != null
+          ? mergedPieceModels.get(piece)
+          : null;
+      if (mergedModel != null) {
+        writer.writeAttribute("mergedModel", mergedModel);
+      } else {
+        writer.writeAttribute("model", getModelExportedContentName(piece, piece.getModel()), null);
+        if ((getFlags() & HomeXMLFileRecorder.INCLUDE_MODEL_METADATA) != 0) {
+          writeModelMetadataAttributes(writer, contentConvertedModels.get(piece.getModel()));
+        }
+      }
       if ((getFlags() & HomeXMLFileRecorder.INCLUDE_VIEWER_DATA) == 0
           || (getFlags() & HomeXMLFileRecorder.INCLUDE_ICONS) != 0) {
         writer.writeAttribute("icon", getExportedContentName(piece, piece.getIcon()), null);
@@ -294,6 +634,25 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
       }
     }
 
+    /**
+     * Writes the bounds, the vertex and triangle counts, the textures size and the compressed size
+     * of the given converted model.
+     */
+    private void writeModelMetadataAttributes(XMLWriter writer, ConvertedModel convertedModel) throws IOException {
+      if (convertedModel != null) {
+        float [] bounds = convertedModel.getBounds();
+        if (bounds != null) {
+          writer.writeAttribute("modelBounds",
+              floatToString(bounds [0]) + " " + floatToString(bounds [1]) + " " + floatToString(bounds [2]) + " "
+              + floatToString(bounds [3]) + " " + floatToString(bounds [4]) + " " + floatToString(bounds [5]));
+        }
+        writer.writeIntegerAttribute("modelVertexCount", convertedModel.getVertexCount());
+        writer.writeIntegerAttribute("modelTriangleCount", convertedModel.getTriangleCount());
+        writer.writeLongAttribute("modelTexturesSize", convertedModel.getTexturesSize());
+        writer.writeLongAttribute("modelCompressedSize", convertedModel.getCompressedSize(compressionLevel));
+      }
+    }
+
     @Override
     protected void writeChildren(XMLWriter writer, HomePieceOfFurniture piece) throws IOException {
       if ((getFlags() & HomeXMLFileRecorder.INCLUDE_VIEWER_DATA) != 0) {
@@ -303,6 +662,11 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
             writePieceOfFurniture(writer, groupPiece);
           }
         }
+        if (mergedPieceModels != null
+            && mergedPieceModels.containsKey(piece)) {
+          // Texture and materials are baked in merged model
+          return;
+        }
         writeTexture(writer, piece.getTexture(), null);
         if (piece.getModelMaterials() != null) {
           for (HomeMaterial material : piece.getModelMaterials()) {
@@ -376,12 +740,26 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
                || content instanceof TemporaryURLContent) {
       throw new IllegalArgumentException("Invalid content of class " + content.getClass().getName()
           + " (home should reference only its own entries or external URLs)");
-    } else if (content.getClass().getName().equals("com.eteks.sweethome3d.io.HomeURLContent")) {
+    } else if (content.getClass().getName().equals("com.eteks.sweethome3d.io.HomeURLContent")
+               || content instanceof LazyHomeURLContent) {
       // Keep track of saved content
       this.referencedContents.add(content);
+      updateContentPriority(content);
       return content instanceof URLContent && ((URLContent)content).isJAREntry()
           ? ((URLContent)content).getJAREntryName()
           : content.toString();
+    } else if ((getFlags() & HomeXMLFileRecorder.EMBED_EXTERNAL_CONTENT) != 0) {
+      try {
+        ExternalURLContent externalContent = new ExternalURLContent(((URLContent)content).getURL());
+        // Keep track of external content which will be embedded
+        this.referencedContents.add(externalContent);
+        updateContentPriority(externalContent);
+        return externalContent.getEmbeddedEntryName();
+      } catch (MalformedURLException ex) {
+        return ((URLContent)content).getURL().toString();
+      } catch (UnsupportedEncodingException ex) {
+        return ((URLContent)content).getURL().toString();
+      }
     } else {
       return ((URLContent)content).getURL().toString();
     }
@@ -402,34 +780,182 @@ public class HomeXMLOptionalExporter extends HomeXMLExporter {
         exportedEntry = entryContent.substring(0, slashIndex + 1) + modelFileName;
       }
 
-      if (!this.referencedContents.contains(new URLContent(new URL(((URLContent)content).getURL(), "/" + exportedEntry)))) {
-        // Convert model to OBJ format
-        BranchGroup model = ModelManager.getInstance().loadModel(content);
-        File tempModelFile = OperatingSystem.createTemporaryFile("model", ".zip");
-        Map<String, Appearance> materialAppearances = new LinkedHashMap<String, Appearance>();
-        OBJWriter.writeNodeInZIPFile(model, materialAppearances, tempModelFile, 0, modelFileName, "Export for compatibility");
-        // Check material names which were updated in the updated OBJ file
-        HashMap<String, String> materialUpdatedKeys = null;
-        for (Map.Entry<String, Appearance> appearanceEntry : materialAppearances.entrySet()) {
-          String materialName = appearanceEntry.getKey();
-          String appearanceName = appearanceEntry.getValue().getName();
-          if (!materialName.equals(appearanceName)) {
-            if (materialUpdatedKeys == null) {
-              materialUpdatedKeys = new HashMap<String, String>();
-              this.contentMaterialUpdatedKeys.put(content, materialUpdatedKeys);
-            }
-            materialUpdatedKeys.put(appearanceName, materialName);
-          }
+      URL exportedUrl = new URL(((URLContent)content).getURL(), "/" + exportedEntry);
+      if (!this.referencedContents.contains(new URLContent(exportedUrl))) {
+        ConvertedModel convertedModel = getSharedConvertedModel(exportedUrl, content, modelFileName);
+        if (convertedModel == null) {
+          // Keep model in its original format
+          this.modelConversionOffenders.putIfAbsent(entryContent,
+              "Conversion longer than " + this.modelConversionMaxTime + " ms");
+          return getExportedContentName(owner, content);
+        } else if (this.modelMaxTriangleCount > 0
+            && convertedModel.getTriangleCount() > this.modelMaxTriangleCount) {
+          this.modelConversionOffenders.putIfAbsent(entryContent,
+              convertedModel.getTriangleCount() + " triangles replaced by bounding box");
+          convertedModel = convertedModel.getBoundingBoxModel();
         }
-        URLContent exportedContent = new RedirectedURLContent(new URL(((URLContent)content).getURL(), "/" + exportedEntry),
-            new URLContent(new URL("jar:" + tempModelFile.toURI().toURL() + "!/" + modelFileName)));
+        if (convertedModel.getMaterialUpdatedKeys() != null) {
+          this.contentMaterialUpdatedKeys.put(content, convertedModel.getMaterialUpdatedKeys());
+        }
+        this.contentConvertedModels.put(content, convertedModel);
+        URLContent exportedContent = new RedirectedURLContent(exportedUrl,
+            new URLContent(new URL("jar:" + convertedModel.getZipFile().toURI().toURL() + "!/" + modelFileName)));
         // Keep track of saved content
         this.referencedContents.add(exportedContent);
       }
+      updateContentPriority(new URLContent(exportedUrl));
 
       return exportedEntry;
     } else {
       return getExportedContentName(owner, content);
     }
   }
+
+  /**
+   * Returns the given model converted to OBJ format, ensuring it's converted only once
+   * by this exporter and its shard exporters, or <code>null</code> if its conversion
+   * didn't end within the maximum conversion time.
+   */
+  private ConvertedModel getSharedConvertedModel(URL exportedUrl, final Content content,
+                                                 final String modelFileName) throws IOException {
+    ModelConversionTask conversionTask = new ModelConversionTask(new Callable<ConvertedModel>() {
+        public ConvertedModel call() throws IOException {
+          ConvertedModel convertedModel = getConvertedModel(content, modelFileName, getFlags(), exportCache);
+          if (convertedModelLeases != null) {
+            convertedModelLeases.add(convertedModel);
+          } else if (exportCache != null) {
+            exportCache.releaseConvertedModel(convertedModel);
+          }
+          return convertedModel;
+        }
+      });
+    ModelConversionTask sharedConversionTask = this.convertedModels.putIfAbsent(exportedUrl.toString(), conversionTask);
+    if (sharedConversionTask == null) {
+      sharedConversionTask = conversionTask;
+      if (this.modelConversionExecutor != null) {
+        // Convert model in a separate thread to be able to stop waiting for it
+        this.modelConversionExecutor.execute(conversionTask);
+      } else {
+        conversionTask.run();
+      }
+    }
+    try {
+      if (this.modelConversionExecutor != null) {
+        try {
+          // Count conversion time from its start, not from the time it waited for a free thread
+          long startTime = sharedConversionTask.awaitStart();
+          long remainingTime = this.modelConversionMaxTime - (System.nanoTime() - startTime) / 1000000;
+          return sharedConversionTask.get(Math.max(0, remainingTime), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+          if (sharedConversionTask.cancel(true)) {
+            replaceBusyConversionThread();
+          }
+          return null;
+        } catch (CancellationException ex) {
+          // Conversion already given up by an other piece or shard
+          return null;
+        }
+      } else {
+        return sharedConversionTask.get();
+      }
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Model conversion interrupted");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException)ex.getCause();
+      } else if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ex.getCause();
+      } else {
+        throw new IOException("Couldn't convert model " + ex.getCause());
+      }
+    }
+  }
+
+  /**
+   * Adds a thread to conversion executor to replace the one which may be kept busy
+   * by a conversion given up, since interrupting it doesn't stop model loading.
+   */
+  private void replaceBusyConversionThread() {
+    synchronized (this.modelConversionExecutor) {
+      int threadCount = this.modelConversionExecutor.getMaximumPoolSize() + 1;
+      this.modelConversionExecutor.setMaximumPoolSize(threadCount);
+      this.modelConversionExecutor.setCorePoolSize(threadCount);
+    }
+  }
+
+  /**
+   * Returns the given model converted to OBJ format, reusing the one stored in export cache if it exists.
+   * If <code>exportCache</code> isn't <code>null</code>, the returned model is leased from that cache
+   * and must be released once it's not used anymore.
+   */
+  static ConvertedModel getConvertedModel(Content content, String modelFileName,
+                                          int flags, ExportCache exportCache) throws IOException {
+    String cacheKey = null;
+    if (exportCache != null) {
+      cacheKey = ExportCache.getContentDigest(content) + "/" + (flags & HomeXMLFileRecorder.PACK_TEXTURES_IN_ATLAS);
+      ConvertedModel convertedModel = exportCache.getConvertedModel(cacheKey);
+      if (convertedModel != null) {
+        return convertedModel;
+      }
+    }
+    ConvertedModel convertedModel = convertModel(content, modelFileName, flags);
+    if (cacheKey != null) {
+      exportCache.putConvertedModel(cacheKey, convertedModel);
+    }
+    return convertedModel;
+  }
+
+  /**
+   * Converts the given model to OBJ format in a temporary zip file.
+   */
+  private static ConvertedModel convertModel(Content content, String modelFileName, int flags) throws IOException {
+    BranchGroup model = ModelManager.getInstance().loadModel(content);
+    File tempModelFile = OperatingSystem.createTemporaryFile("model", ".zip");
+    Map<String, Appearance> materialAppearances = new LinkedHashMap<String, Appearance>();
+    OBJWriter.writeNodeInZIPFile(model, materialAppearances, tempModelFile, 0, modelFileName, "Export for compatibility");
+    if ((flags & HomeXMLFileRecorder.PACK_TEXTURES_IN_ATLAS) != 0) {
+      tempModelFile = TextureAtlasPacker.packTextures(tempModelFile, modelFileName);
+    }
+    // Check material names which were updated in the updated OBJ file
+    HashMap<String, String> materialUpdatedKeys = null;
+    for (Map.Entry<String, Appearance> appearanceEntry : materialAppearances.entrySet()) {
+      String materialName = appearanceEntry.getKey();
+      String appearanceName = appearanceEntry.getValue().getName();
+      if (!materialName.equals(appearanceName)) {
+        if (materialUpdatedKeys == null) {
+          materialUpdatedKeys = new HashMap<String, String>();
+        }
+        materialUpdatedKeys.put(appearanceName, materialName);
+      }
+    }
+    return new ConvertedModel(tempModelFile, modelFileName, materialUpdatedKeys);
+  }
+
+  /**
+   * A model conversion task which notes when it started to run.
+   */
+  private static class ModelConversionTask extends FutureTask<ConvertedModel> {
+    private final CountDownLatch startSignal;
+    private volatile long        startTime;
+
+    public ModelConversionTask(Callable<ConvertedModel> callable) {
+      super(callable);
+      this.startSignal = new CountDownLatch(1);
+    }
+
+    @Override
+    public void run() {
+      this.startTime = System.nanoTime();
+      this.startSignal.countDown();
+      super.run();
+    }
+
+    /**
+     * Waits until this task starts to run and returns its start time in nanoseconds.
+     */
+    public long awaitStart() throws InterruptedException {
+      this.startSignal.await();
+      return this.startTime;
+    }
+  }
 }
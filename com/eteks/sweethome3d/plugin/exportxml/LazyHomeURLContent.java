@@ -0,0 +1,80 @@
+/*
+ * LazyHomeURLContent.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.eteks.sweethome3d.tools.URLContent;
+
+/**
+ * An URLContent referencing an entry of a home file which is read only when it's exported.
+ * While the home file is opened by the export, the entry is read from the zip file shared
+ * by all the content of that home, instead of opening the home file at each read.
+ */
+class LazyHomeURLContent extends URLContent {
+  private static final long serialVersionUID = 1L;
+
+  private transient ZipFile homeZipFile;
+
+  public LazyHomeURLContent(URL url) {
+    this(url, null);
+  }
+
+  public LazyHomeURLContent(URL url, ZipFile homeZipFile) {
+    super(url);
+    this.homeZipFile = homeZipFile;
+  }
+
+  /**
+   * Returns the opened home file containing this content, or <code>null</code> if it's not available.
+   */
+  public ZipFile getHomeZipFile() {
+    return this.homeZipFile;
+  }
+
+  /**
+   * Returns the content of the entry <code>entryName</code> stored in the same home file.
+   */
+  public LazyHomeURLContent getSiblingContent(String entryName) throws IOException {
+    return new LazyHomeURLContent(new URL("jar:" + getJAREntryURL() + "!/"
+        + URLEncoder.encode(entryName, "UTF-8").replace("+", "%20")), this.homeZipFile);
+  }
+
+  @Override
+  public InputStream openStream() throws IOException {
+    if (this.homeZipFile != null) {
+      try {
+        ZipEntry entry = this.homeZipFile.getEntry(URLDecoder.decode(getJAREntryName().replace("+", "%2B"), "UTF-8"));
+        if (entry != null) {
+          return this.homeZipFile.getInputStream(entry);
+        }
+      } catch (IllegalStateException ex) {
+        // Home file was closed at the end of the export
+      }
+    }
+    return super.openStream();
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * MaterialGroupsMerger.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.eteks.sweethome3d.tools.OperatingSystem;
+
+/**
+ * Merges the groups of a zipped OBJ model which use the same material,
+ * to get one group per material drawn at once by viewers.
+ * Vertices are kept in the same order, and relative indices of faces are converted to absolute indices.
+ */
+class MaterialGroupsMerger {
+  private static final String ENCODING = "ISO-8859-1";
+
+  private MaterialGroupsMerger() {
+  }
+
+  /**
+   * Merges the faces of the OBJ entry <code>objEntryName</code> of the given zip file which use the same
+   * material, and returns the zip file that contains the updated model with the other entries unchanged.
+   */
+  public static File mergeGroups(File modelZipFile, String objEntryName) throws IOException {
+    File mergedModelFile = OperatingSystem.createTemporaryFile("model", ".zip");
+    ZipFile zipFile = new ZipFile(modelZipFile);
+    ZipOutputStream zipOut = null;
+    try {
+      zipOut = new ZipOutputStream(new FileOutputStream(mergedModelFile));
+      zipOut.setLevel(0);
+      byte [] buffer = new byte [8192];
+      for (Enumeration<? extends ZipEntry> enumeration = zipFile.entries(); enumeration.hasMoreElements(); ) {
+        ZipEntry entry = enumeration.nextElement();
+        zipOut.putNextEntry(new ZipEntry(entry.getName()));
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+          if (entry.getName().equals(objEntryName)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(zipOut, ENCODING));
+            mergeGroups(new BufferedReader(new InputStreamReader(in, ENCODING)), writer);
+            writer.flush();
+          } else {
+            for (int size; (size = in.read(buffer)) != -1; ) {
+              zipOut.write(buffer, 0, size);
+            }
+          }
+        } finally {
+          in.close();
+        }
+        zipOut.closeEntry();
+      }
+    } finally {
+      if (zipOut != null) {
+        zipOut.close();
+      }
+      zipFile.close();
+    }
+    modelZipFile.delete();
+    return mergedModelFile;
+  }
+
+  private static void mergeGroups(BufferedReader reader, Writer writer) throws IOException {
+    // Faces of each material in the order materials are found, with their smoothing group
+    Map<String, List<String>> materialFaces = new LinkedHashMap<String, List<String>>();
+    String material = "";
+    String smoothingGroup = "off";
+    int [] counts = new int [3]; // Count of vertices, texture coordinates and normals
+    for (String line; (line = reader.readLine()) != null; ) {
+      String trimmedLine = line.trim();
+      if (trimmedLine.startsWith("v ")) {
+        counts [0]++;
+        writer.write(trimmedLine + "\n");
+      } else if (trimmedLine.startsWith("vt ")) {
+        counts [1]++;
+        writer.write(trimmedLine + "\n");
+      } else if (trimmedLine.startsWith("vn ")) {
+        counts [2]++;
+        writer.write(trimmedLine + "\n");
+      } else if (trimmedLine.startsWith("f ")
+                 || trimmedLine.startsWith("l ")
+                 || trimmedLine.startsWith("p ")) {
+        List<String> faces = materialFaces.get(material);
+        if (faces == null) {
+          faces = new ArrayList<String>();
+          materialFaces.put(material, faces);
+        }
+        faces.add(smoothingGroup);
+        faces.add(getAbsoluteFace(trimmedLine, counts));
+      } else if (trimmedLine.startsWith("usemtl ")) {
+        material = trimmedLine.substring(7).trim();
+      } else if (trimmedLine.startsWith("s ")) {
+        smoothingGroup = trimmedLine.substring(2).trim();
+      } else if (trimmedLine.startsWith("#")
+                 || trimmedLine.startsWith("mtllib ")) {
+        writer.write(trimmedLine + "\n");
+      }
+      // Ignore groups, objects and unknown lines
+    }
+
+    for (Map.Entry<String, List<String>> entry : materialFaces.entrySet()) {
+      String materialName = entry.getKey();
+      if (materialName.length() > 0) {
+        writer.write("g " + materialName.replaceAll("\\s", "_") + "\n");
+        writer.write("usemtl " + materialName + "\n");
+      } else {
+        writer.write("g default\n");
+      }
+      String writtenSmoothingGroup = null;
+      List<String> faces = entry.getValue();
+      for (int i = 0; i < faces.size(); i += 2) {
+        if (!faces.get(i).equals(writtenSmoothingGroup)) {
+          writtenSmoothingGroup = faces.get(i);
+          writer.write("s " + writtenSmoothingGroup + "\n");
+        }
+        writer.write(faces.get(i + 1) + "\n");
+      }
+    }
+  }
+
+  /**
+   * Returns the given face line with relative indices replaced by absolute indices.
+   */
+  private static String getAbsoluteFace(String face, int [] counts) throws IOException {
+    String [] tokens = face.split("\\s+");
+    StringBuilder absoluteFace = new StringBuilder(tokens [0]);
+    try {
+      for (int i = 1; i < tokens.length; i++) {
+        absoluteFace.append(' ');
+        String [] indices = tokens [i].split("/", -1);
+        for (int j = 0; j < indices.length; j++) {
+          if (j > 0) {
+            absoluteFace.append('/');
+          }
+          if (indices [j].length() > 0) {
+            int index = Integer.parseInt(indices [j]);
+            absoluteFace.append(index > 0 ? index : counts [j] + index + 1);
+          }
+        }
+      }
+    } catch (NumberFormatException ex) {
+      throw new IOException("Invalid face " + face);
+    } catch (ArrayIndexOutOfBoundsException ex) {
+      throw new IOException("Invalid face " + face);
+    }
+    return absoluteFace.toString();
+  }
+}
@@ -0,0 +1,430 @@
+/*
+ * TextureAtlasPacker.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.ImageIO;
+
+import com.eteks.sweethome3d.tools.OperatingSystem;
+
+/**
+ * Packs the small textures of a zipped OBJ model in atlas images
+ * and updates the texture coordinates of the model accordingly.
+ * A texture is packed only if all the texture coordinates that reference it are
+ * between 0 and 1 and aren't shared with faces displayed with an other texture.
+ */
+class TextureAtlasPacker {
+  private static final String ENCODING = "ISO-8859-1";
+
+  private static final int TEXTURE_MAX_SIZE = 256;
+  private static final int ATLAS_SIZE       = 1024;
+  private static final int PADDING          = 2;
+
+  private TextureAtlasPacker() {
+  }
+
+  /**
+   * Packs the small textures used by the OBJ entry <code>objEntryName</code>
+   * of the given zip file and returns the zip file that contains the updated model,
+   * or <code>modelZipFile</code> if no texture was packed.
+   */
+  public static File packTextures(File modelZipFile, String objEntryName) throws IOException {
+    Map<String, byte []> entries = readEntries(modelZipFile);
+    String obj = new String(entries.get(objEntryName), ENCODING);
+    String [] objLines = obj.split("\r?\n", -1);
+    String mtlEntryName = null;
+    for (String line : objLines) {
+      if (line.startsWith("mtllib ")) {
+        mtlEntryName = line.substring(7).trim();
+        break;
+      }
+    }
+    if (mtlEntryName == null || !entries.containsKey(mtlEntryName)) {
+      return modelZipFile;
+    }
+
+    // Search the textures used by each material
+    String [] mtlLines = new String(entries.get(mtlEntryName), ENCODING).split("\r?\n", -1);
+    Map<String, String> materialTextures = new HashMap<String, String>();
+    Set<String> ineligibleTextures = new HashSet<String>();
+    String material = null;
+    for (String line : mtlLines) {
+      String trimmedLine = line.trim();
+      if (trimmedLine.startsWith("newmtl ")) {
+        material = trimmedLine.substring(7).trim();
+      } else if (material != null && trimmedLine.startsWith("map_")) {
+        String textureName = trimmedLine.substring(trimmedLine.lastIndexOf(' ') + 1);
+        String materialTexture = materialTextures.get(material);
+        if (materialTexture == null) {
+          materialTextures.put(material, textureName);
+        } else if (!materialTexture.equals(textureName)) {
+          // Ignore materials using different maps
+          ineligibleTextures.add(materialTexture);
+          ineligibleTextures.add(textureName);
+        }
+      }
+    }
+
+    // Read small textures
+    Map<String, BufferedImage> textureImages = new HashMap<String, BufferedImage>();
+    for (String textureName : new HashSet<String>(materialTextures.values())) {
+      byte [] textureBytes = entries.get(textureName);
+      if (textureBytes != null && !ineligibleTextures.contains(textureName)) {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(textureBytes));
+        if (image != null
+            && image.getWidth() <= TEXTURE_MAX_SIZE
+            && image.getHeight() <= TEXTURE_MAX_SIZE) {
+          textureImages.put(textureName, image);
+        }
+      }
+    }
+
+    // Check texture coordinates used by faces of each texture
+    List<float []> textureCoordinates = new ArrayList<float []>();
+    Map<Integer, String> textureCoordinatesTextures = new HashMap<Integer, String>();
+    String texture = null;
+    for (String line : objLines) {
+      if (line.startsWith("vt ")) {
+        String [] values = line.substring(3).trim().split("\\s+");
+        textureCoordinates.add(new float [] {Float.parseFloat(values [0]),
+            values.length > 1 ? Float.parseFloat(values [1]) : 0});
+      } else if (line.startsWith("usemtl ")) {
+        texture = materialTextures.get(line.substring(7).trim());
+      } else if (line.startsWith("f ")) {
+        // Use an empty name for faces without texture
+        String faceTexture = texture != null ? texture : "";
+        for (String vertex : line.substring(2).trim().split("\\s+")) {
+          int index = getTextureCoordinatesIndex(vertex, textureCoordinates.size());
+          if (index >= 0) {
+            String previousTexture = textureCoordinatesTextures.put(index, faceTexture);
+            if (previousTexture != null && !previousTexture.equals(faceTexture)) {
+              ineligibleTextures.add(previousTexture);
+              ineligibleTextures.add(faceTexture);
+            }
+            float [] uv = textureCoordinates.get(index);
+            if (uv [0] < -1E-4f || uv [0] > 1 + 1E-4f
+                || uv [1] < -1E-4f || uv [1] > 1 + 1E-4f) {
+              ineligibleTextures.add(faceTexture);
+            }
+          }
+        }
+      }
+    }
+    textureImages.keySet().removeAll(ineligibleTextures);
+    if (textureImages.size() < 2) {
+      return modelZipFile;
+    }
+
+    // Place textures in atlases, the highest ones first
+    List<String> packedTextures = new ArrayList<String>(textureImages.keySet());
+    Collections.sort(packedTextures);
+    final Map<String, BufferedImage> images = textureImages;
+    Collections.sort(packedTextures, new Comparator<String>() {
+        public int compare(String texture1, String texture2) {
+          return images.get(texture2).getHeight() - images.get(texture1).getHeight();
+        }
+      });
+    List<Atlas> atlases = new ArrayList<Atlas>();
+    Map<String, AtlasLocation> textureLocations = new HashMap<String, AtlasLocation>();
+    Atlas atlas = null;
+    for (String textureName : packedTextures) {
+      BufferedImage image = textureImages.get(textureName);
+      int width = image.getWidth() + 2 * PADDING;
+      int height = image.getHeight() + 2 * PADDING;
+      if (atlas == null || !atlas.fits(width, height)) {
+        atlas = new Atlas();
+        atlases.add(atlas);
+      }
+      textureLocations.put(textureName, atlas.add(textureName, image, width, height));
+    }
+
+    // Build atlas images, named once their format is known
+    for (int i = 0; i < atlases.size(); i++) {
+      Atlas packedAtlas = atlases.get(i);
+      packedAtlas.name = getAtlasEntryName(entries, i, packedAtlas.opaque ? ".jpg" : ".png");
+      entries.put(packedAtlas.name, packedAtlas.getImageBytes(textureImages));
+    }
+
+    // Update texture coordinates in OBJ file
+    Map<Integer, String> updatedTextureCoordinates = new HashMap<Integer, String>();
+    for (Map.Entry<Integer, String> entry : textureCoordinatesTextures.entrySet()) {
+      AtlasLocation location = textureLocations.get(entry.getValue());
+      if (location != null) {
+        float [] uv = textureCoordinates.get(entry.getKey());
+        float u = Math.max(0, Math.min(1, uv [0]));
+        float v = Math.max(0, Math.min(1, uv [1]));
+        int atlasWidth = location.atlas.getImageWidth();
+        int atlasHeight = location.atlas.getImageHeight();
+        updatedTextureCoordinates.put(entry.getKey(), "vt "
+            + (location.x + PADDING + u * location.width) / atlasWidth + " "
+            + (1 - (location.y + PADDING + (1 - v) * location.height) / atlasHeight));
+      }
+    }
+    StringBuilder updatedObj = new StringBuilder(obj.length());
+    int textureCoordinatesIndex = 0;
+    for (int i = 0; i < objLines.length; i++) {
+      String line = objLines [i];
+      if (line.startsWith("vt ")) {
+        String updatedLine = updatedTextureCoordinates.get(textureCoordinatesIndex++);
+        if (updatedLine != null) {
+          line = updatedLine;
+        }
+      }
+      updatedObj.append(line);
+      if (i < objLines.length - 1) {
+        updatedObj.append("\n");
+      }
+    }
+    entries.put(objEntryName, updatedObj.toString().getBytes(ENCODING));
+
+    // Replace packed textures by their atlas in MTL file
+    StringBuilder updatedMtl = new StringBuilder();
+    Set<String> referencedTextures = new HashSet<String>();
+    for (int i = 0; i < mtlLines.length; i++) {
+      String line = mtlLines [i];
+      String trimmedLine = line.trim();
+      if (trimmedLine.startsWith("map_")) {
+        String textureName = trimmedLine.substring(trimmedLine.lastIndexOf(' ') + 1);
+        AtlasLocation location = textureLocations.get(textureName);
+        if (location != null) {
+          line = line.substring(0, line.lastIndexOf(textureName)) + location.atlas.name;
+        } else {
+          referencedTextures.add(textureName);
+        }
+      }
+      updatedMtl.append(line);
+      if (i < mtlLines.length - 1) {
+        updatedMtl.append("\n");
+      }
+    }
+    entries.put(mtlEntryName, updatedMtl.toString().getBytes(ENCODING));
+    for (String textureName : packedTextures) {
+      if (!referencedTextures.contains(textureName)) {
+        entries.remove(textureName);
+      }
+    }
+
+    File packedModelFile = OperatingSystem.createTemporaryFile("model", ".zip");
+    writeEntries(packedModelFile, entries);
+    modelZipFile.delete();
+    return packedModelFile;
+  }
+
+  /**
+   * Returns the index of the texture coordinates of the given face vertex, or -1 if it doesn't have any.
+   */
+  private static int getTextureCoordinatesIndex(String faceVertex, int textureCoordinatesCount) {
+    int firstSlashIndex = faceVertex.indexOf('/');
+    if (firstSlashIndex >= 0) {
+      int secondSlashIndex = faceVertex.indexOf('/', firstSlashIndex + 1);
+      String index = secondSlashIndex >= 0
+          ? faceVertex.substring(firstSlashIndex + 1, secondSlashIndex)
+          : faceVertex.substring(firstSlashIndex + 1);
+      if (index.length() > 0) {
+        int i = Integer.parseInt(index);
+        return i > 0
+            ? i - 1
+            : textureCoordinatesCount + i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the name of the atlas at the given index with the extension of its format,
+   * that doesn't exist yet in <code>entries</code>.
+   */
+  private static String getAtlasEntryName(Map<String, byte []> entries, int atlasIndex, String extension) {
+    String name = "atlas" + atlasIndex + extension;
+    for (int i = 0; entries.containsKey(name); i++) {
+      name = "atlas" + atlasIndex + "_" + i + extension;
+    }
+    return name;
+  }
+
+  private static Map<String, byte []> readEntries(File zipFile) throws IOException {
+    Map<String, byte []> entries = new LinkedHashMap<String, byte []>();
+    ZipInputStream zipIn = null;
+    try {
+      zipIn = new ZipInputStream(new FileInputStream(zipFile));
+      byte [] buffer = new byte [8192];
+      for (ZipEntry entry; (entry = zipIn.getNextEntry()) != null; ) {
+        ByteArrayOutputStream entryOut = new ByteArrayOutputStream();
+        for (int size; (size = zipIn.read(buffer)) != -1; ) {
+          entryOut.write(buffer, 0, size);
+        }
+        entries.put(entry.getName(), entryOut.toByteArray());
+      }
+      return entries;
+    } finally {
+      if (zipIn != null) {
+        zipIn.close();
+      }
+    }
+  }
+
+  private static void writeEntries(File zipFile, Map<String, byte []> entries) throws IOException {
+    ZipOutputStream zipOut = null;
+    try {
+      zipOut = new ZipOutputStream(new FileOutputStream(zipFile));
+      zipOut.setLevel(0);
+      for (Map.Entry<String, byte []> entry : entries.entrySet()) {
+        zipOut.putNextEntry(new ZipEntry(entry.getKey()));
+        zipOut.write(entry.getValue());
+        zipOut.closeEntry();
+      }
+    } finally {
+      if (zipOut != null) {
+        zipOut.close();
+      }
+    }
+  }
+
+  /**
+   * The location of a texture in an atlas.
+   */
+  private static class AtlasLocation {
+    private final Atlas atlas;
+    private final int   x;
+    private final int   y;
+    private final int   width;
+    private final int   height;
+
+    public AtlasLocation(Atlas atlas, int x, int y, int width, int height) {
+      this.atlas = atlas;
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  /**
+   * An atlas filled with shelves of textures.
+   */
+  private static class Atlas {
+    private String                     name;
+    private boolean                    opaque = true;
+    private int                        shelfX;
+    private int                        shelfY;
+    private int                        shelfHeight;
+    private int                        usedWidth;
+    private Map<String, AtlasLocation> locations = new LinkedHashMap<String, AtlasLocation>();
+
+    public boolean fits(int width, int height) {
+      if (this.shelfX + width <= ATLAS_SIZE) {
+        return this.shelfY + height <= ATLAS_SIZE;
+      } else {
+        return width <= ATLAS_SIZE
+            && this.shelfY + this.shelfHeight + height <= ATLAS_SIZE;
+      }
+    }
+
+    public AtlasLocation add(String textureName, BufferedImage image, int width, int height) {
+      if (this.shelfX + width > ATLAS_SIZE) {
+        // Start a new shelf
+        this.shelfY += this.shelfHeight;
+        this.shelfX = 0;
+        this.shelfHeight = 0;
+      }
+      AtlasLocation location = new AtlasLocation(this, this.shelfX, this.shelfY, image.getWidth(), image.getHeight());
+      this.locations.put(textureName, location);
+      this.shelfX += width;
+      this.shelfHeight = Math.max(this.shelfHeight, height);
+      this.usedWidth = Math.max(this.usedWidth, this.shelfX);
+      this.opaque &= image.getColorModel().getTransparency() == Transparency.OPAQUE;
+      return location;
+    }
+
+    /**
+     * Returns the width of this atlas image, rounded to a power of 2.
+     */
+    public int getImageWidth() {
+      return getPowerOfTwo(this.usedWidth);
+    }
+
+    /**
+     * Returns the height of this atlas image, rounded to a power of 2.
+     */
+    public int getImageHeight() {
+      return getPowerOfTwo(this.shelfY + this.shelfHeight);
+    }
+
+    private int getPowerOfTwo(int size) {
+      int powerOfTwo = 1;
+      while (powerOfTwo < size) {
+        powerOfTwo *= 2;
+      }
+      return powerOfTwo;
+    }
+
+    /**
+     * Returns the content of this atlas at PNG format or at JPEG format if it's opaque.
+     */
+    public byte [] getImageBytes(Map<String, BufferedImage> textureImages) throws IOException {
+      BufferedImage atlasImage = new BufferedImage(getImageWidth(), getImageHeight(),
+          this.opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g2D = (Graphics2D)atlasImage.getGraphics();
+      for (Map.Entry<String, AtlasLocation> entry : this.locations.entrySet()) {
+        BufferedImage image = textureImages.get(entry.getKey());
+        AtlasLocation location = entry.getValue();
+        int x = location.x + PADDING;
+        int y = location.y + PADDING;
+        int width = location.width;
+        int height = location.height;
+        g2D.drawImage(image, x, y, null);
+        // Repeat borders in padding to avoid bleeding with neighbors when texture is filtered
+        g2D.drawImage(image, x - PADDING, y, x, y + height, 0, 0, 1, height, null);
+        g2D.drawImage(image, x + width, y, x + width + PADDING, y + height, width - 1, 0, width, height, null);
+        g2D.drawImage(image, x, y - PADDING, x + width, y, 0, 0, width, 1, null);
+        g2D.drawImage(image, x, y + height, x + width, y + height + PADDING, 0, height - 1, width, height, null);
+        g2D.drawImage(image, x - PADDING, y - PADDING, x, y, 0, 0, 1, 1, null);
+        g2D.drawImage(image, x + width, y - PADDING, x + width + PADDING, y, width - 1, 0, width, 1, null);
+        g2D.drawImage(image, x - PADDING, y + height, x, y + height + PADDING, 0, height - 1, 1, height, null);
+        g2D.drawImage(image, x + width, y + height, x + width + PADDING, y + height + PADDING, width - 1, height - 1, width, height, null);
+      }
+      g2D.dispose();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(atlasImage, this.opaque ? "JPEG" : "PNG", out);
+      return out.toByteArray();
+    }
+  }
+}
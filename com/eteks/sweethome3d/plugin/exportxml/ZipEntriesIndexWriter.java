@@ -0,0 +1,240 @@
+/*
+ * ZipEntriesIndexWriter.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Copies a zip file and inserts after its first entry a stored entry named <code>HomeIndex.txt</code>
+ * which lists the byte range of each entry in the copied file, to let clients load entries
+ * with HTTP range requests without reading first the central directory at the end of the file.
+ * Each line of the index is made of the offset of the local header of an entry,
+ * the length of its record (header, data and data descriptor) and its name, separated by a space.
+ */
+class ZipEntriesIndexWriter {
+  public static final String INDEX_ENTRY_NAME = "HomeIndex.txt";
+
+  private static final int LOCAL_HEADER_SIGNATURE             = 0x04034b50;
+  private static final int CENTRAL_DIRECTORY_SIGNATURE        = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+  private ZipEntriesIndexWriter() {
+  }
+
+  /**
+   * Copies the given <code>zipFile</code> to <code>out</code> stream with an index entry.
+   * If the zip file is empty or requires Zip64 extensions, it's copied unchanged.
+   */
+  public static void copyWithIndex(File zipFile, OutputStream out) throws IOException {
+    RandomAccessFile zipIn = new RandomAccessFile(zipFile, "r");
+    try {
+      long endOfCentralDirectoryOffset = findEndOfCentralDirectory(zipIn);
+      byte [] endOfCentralDirectory = new byte [(int)(zipIn.length() - endOfCentralDirectoryOffset)];
+      zipIn.seek(endOfCentralDirectoryOffset);
+      zipIn.readFully(endOfCentralDirectory);
+      int entryCount = readShort(endOfCentralDirectory, 10);
+      long centralDirectorySize = readInt(endOfCentralDirectory, 12);
+      long centralDirectoryOffset = readInt(endOfCentralDirectory, 16);
+      if (entryCount == 0
+          || entryCount >= 0xFFFF
+          || centralDirectoryOffset >= 0xFFFFFFFFL
+          || centralDirectorySize >= 0xFFFFFFFFL) {
+        copy(zipIn, 0, zipIn.length(), out);
+        return;
+      }
+
+      // Read central directory records
+      byte [] centralDirectory = new byte [(int)centralDirectorySize];
+      zipIn.seek(centralDirectoryOffset);
+      zipIn.readFully(centralDirectory);
+      List<Integer> recordOffsets = new ArrayList<Integer>(entryCount);
+      List<String> names = new ArrayList<String>(entryCount);
+      List<Long> localOffsets = new ArrayList<Long>(entryCount);
+      for (int i = 0, offset = 0; i < entryCount; i++) {
+        if (readInt(centralDirectory, offset) != CENTRAL_DIRECTORY_SIGNATURE) {
+          throw new IOException("Invalid central directory in " + zipFile);
+        }
+        int nameLength = readShort(centralDirectory, offset + 28);
+        recordOffsets.add(offset);
+        names.add(new String(centralDirectory, offset + 46, nameLength, "UTF-8"));
+        localOffsets.add(readInt(centralDirectory, offset + 42));
+        offset += 46 + nameLength + readShort(centralDirectory, offset + 30) + readShort(centralDirectory, offset + 32);
+      }
+      for (int i = 1; i < entryCount; i++) {
+        if (localOffsets.get(i) <= localOffsets.get(i - 1)) {
+          throw new IOException("Unordered entries in " + zipFile);
+        }
+      }
+
+      // Compute index content until its length is stable since it contains shifted offsets
+      byte [] nameBytes = INDEX_ENTRY_NAME.getBytes("UTF-8");
+      long indexRecordLength = 0;
+      byte [] index;
+      while (true) {
+        ByteArrayOutputStream indexOut = new ByteArrayOutputStream();
+        for (int i = 0; i < entryCount; i++) {
+          long offset = localOffsets.get(i);
+          long length = (i < entryCount - 1 ? localOffsets.get(i + 1) : centralDirectoryOffset) - offset;
+          if (i > 0) {
+            offset += indexRecordLength;
+          }
+          indexOut.write((offset + " " + length + " " + names.get(i) + "\n").getBytes("UTF-8"));
+        }
+        index = indexOut.toByteArray();
+        long length = 30 + nameBytes.length + index.length;
+        if (length == indexRecordLength) {
+          break;
+        }
+        indexRecordLength = length;
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(index);
+      // Reuse the date of the first entry
+      int time = readShort(centralDirectory, 12);
+      int date = readShort(centralDirectory, 14);
+      long indexOffset = entryCount > 1 ? localOffsets.get(1) : centralDirectoryOffset;
+
+      // Copy first entry, then index and other entries
+      copy(zipIn, 0, indexOffset, out);
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      writeInt(header, LOCAL_HEADER_SIGNATURE);
+      writeShort(header, 10);
+      writeShort(header, 0);
+      writeShort(header, 0);
+      writeShort(header, time);
+      writeShort(header, date);
+      writeInt(header, crc.getValue());
+      writeInt(header, index.length);
+      writeInt(header, index.length);
+      writeShort(header, nameBytes.length);
+      writeShort(header, 0);
+      header.write(nameBytes);
+      header.writeTo(out);
+      out.write(index);
+      copy(zipIn, indexOffset, centralDirectoryOffset, out);
+
+      // Write central directory with updated offsets
+      ByteArrayOutputStream centralDirectoryOut = new ByteArrayOutputStream();
+      for (int i = 0; i < entryCount; i++) {
+        int recordOffset = recordOffsets.get(i);
+        int recordEnd = i < entryCount - 1 ? recordOffsets.get(i + 1) : centralDirectory.length;
+        if (i > 0) {
+          writeInt(centralDirectory, recordOffset + 42, localOffsets.get(i) + indexRecordLength);
+        }
+        centralDirectoryOut.write(centralDirectory, recordOffset, recordEnd - recordOffset);
+        if (i == 0) {
+          writeInt(centralDirectoryOut, CENTRAL_DIRECTORY_SIGNATURE);
+          writeShort(centralDirectoryOut, 20);
+          writeShort(centralDirectoryOut, 10);
+          writeShort(centralDirectoryOut, 0);
+          writeShort(centralDirectoryOut, 0);
+          writeShort(centralDirectoryOut, time);
+          writeShort(centralDirectoryOut, date);
+          writeInt(centralDirectoryOut, crc.getValue());
+          writeInt(centralDirectoryOut, index.length);
+          writeInt(centralDirectoryOut, index.length);
+          writeShort(centralDirectoryOut, nameBytes.length);
+          writeShort(centralDirectoryOut, 0);
+          writeShort(centralDirectoryOut, 0);
+          writeShort(centralDirectoryOut, 0);
+          writeShort(centralDirectoryOut, 0);
+          writeInt(centralDirectoryOut, 0);
+          writeInt(centralDirectoryOut, indexOffset);
+          centralDirectoryOut.write(nameBytes);
+        }
+      }
+      centralDirectoryOut.writeTo(out);
+
+      writeShort(endOfCentralDirectory, 8, entryCount + 1);
+      writeShort(endOfCentralDirectory, 10, entryCount + 1);
+      writeInt(endOfCentralDirectory, 12, centralDirectoryOut.size());
+      writeInt(endOfCentralDirectory, 16, centralDirectoryOffset + indexRecordLength);
+      out.write(endOfCentralDirectory);
+    } finally {
+      zipIn.close();
+    }
+  }
+
+  /**
+   * Returns the offset of the end of central directory record of a zip file.
+   */
+  private static long findEndOfCentralDirectory(RandomAccessFile zipIn) throws IOException {
+    long length = zipIn.length();
+    int searchedLength = (int)Math.min(length, 22 + 0xFFFF);
+    byte [] end = new byte [searchedLength];
+    zipIn.seek(length - searchedLength);
+    zipIn.readFully(end);
+    for (int i = searchedLength - 22; i >= 0; i--) {
+      if (readInt(end, i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        return length - searchedLength + i;
+      }
+    }
+    throw new IOException("Not a zip file");
+  }
+
+  private static void copy(RandomAccessFile in, long start, long end, OutputStream out) throws IOException {
+    byte [] buffer = new byte [8192];
+    in.seek(start);
+    for (long remaining = end - start; remaining > 0; ) {
+      int size = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+      if (size == -1) {
+        throw new IOException("Unexpected end of file");
+      }
+      out.write(buffer, 0, size);
+      remaining -= size;
+    }
+  }
+
+  private static int readShort(byte [] bytes, int offset) {
+    return (bytes [offset] & 0xFF) | ((bytes [offset + 1] & 0xFF) << 8);
+  }
+
+  private static long readInt(byte [] bytes, int offset) {
+    return (readShort(bytes, offset) | ((long)readShort(bytes, offset + 2) << 16)) & 0xFFFFFFFFL;
+  }
+
+  private static void writeShort(byte [] bytes, int offset, int value) {
+    bytes [offset] = (byte)value;
+    bytes [offset + 1] = (byte)(value >> 8);
+  }
+
+  private static void writeInt(byte [] bytes, int offset, long value) {
+    writeShort(bytes, offset, (int)value);
+    writeShort(bytes, offset + 2, (int)(value >> 16));
+  }
+
+  private static void writeShort(OutputStream out, int value) throws IOException {
+    out.write(value);
+    out.write(value >> 8);
+  }
+
+  private static void writeInt(OutputStream out, long value) throws IOException {
+    writeShort(out, (int)value);
+    writeShort(out, (int)(value >> 16));
+  }
+}
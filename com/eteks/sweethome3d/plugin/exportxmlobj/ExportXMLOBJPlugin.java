@@ -39,6 +39,7 @@ import com.eteks.sweethome3d.model.InterruptedRecorderException;
 import com.eteks.sweethome3d.model.RecorderException;
 import com.eteks.sweethome3d.plugin.Plugin;
 import com.eteks.sweethome3d.plugin.PluginAction;
+import com.eteks.sweethome3d.plugin.exportxml.ExportCache;
 import com.eteks.sweethome3d.plugin.exportxml.HomeXMLFileRecorder;
 import com.eteks.sweethome3d.swing.FileContentManager;
 import com.eteks.sweethome3d.swing.SwingViewFactory;
@@ -51,6 +52,45 @@ import com.eteks.sweethome3d.viewcontroller.ThreadedTaskController;
  * @author Emmanuel Puybaret
  */
 public class ExportXMLOBJPlugin extends Plugin {
+  /**
+   * System property which enables the preparation of exports while home is modified.
+   */
+  public static final String PREPARE_EXPORT_IN_BACKGROUND = "com.eteks.sweethome3d.plugin.exportxmlobj.prepareExportInBackground";
+
+  private ExportCache        exportCache;
+  private HomeExportPreparer exportPreparer;
+
+  @Override
+  public void init() {
+    if (Boolean.getBoolean(PREPARE_EXPORT_IN_BACKGROUND)) {
+      this.exportCache = new ExportCache();
+      this.exportPreparer = new HomeExportPreparer(getHome(), createHomeRecorder());
+      this.exportPreparer.start();
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (this.exportPreparer != null) {
+      this.exportPreparer.stop();
+      this.exportCache.clear();
+      this.exportPreparer = null;
+    }
+  }
+
+  /**
+   * Returns a new recorder able to export home, which shares converted models with previous exports
+   * if home is prepared in background.
+   */
+  private HomeXMLFileRecorder createHomeRecorder() {
+    HomeXMLFileRecorder recorder = new HomeXMLFileRecorder(9,
+        HomeXMLFileRecorder.INCLUDE_HOME_STRUCTURE
+        | HomeXMLFileRecorder.INCLUDE_ICONS
+        | HomeXMLFileRecorder.CONVERT_MODELS_TO_OBJ_FORMAT);
+    recorder.setExportCache(this.exportCache);
+    return recorder;
+  }
+
   @Override
   public PluginAction [] getActions() {
     return new PluginAction [] {new ExportXMLOBJPluginAction("com.eteks.sweethome3d.plugin.exportxmlobj.ApplicationPlugin", 
@@ -154,11 +194,26 @@ public class ExportXMLOBJPlugin extends Plugin {
           resource.getString("exportXMLOBJDialog.title"), 
           ContentManager.ContentType.USER_DEFINED, getHome().getName());
       if (exportedFile != null) {
+        final HomeExportPreparer exportPreparer = ExportXMLOBJPlugin.this.exportPreparer;
+        final File preparedStructureFile = exportPreparer != null
+            ? exportPreparer.startExport()
+            : null;
         // Export to XML / OBJ in a threaded task
         Callable<Void> exportToObjTask = new Callable<Void>() {
           public Void call() throws RecorderException {
-            getHomeRecorder().writeHome(getHome().clone(), exportedFile);
-            return null;
+            try {
+              HomeRecorder recorder = getHomeRecorder();
+              if (preparedStructureFile != null
+                  && recorder instanceof HomeXMLFileRecorder) {
+                ((HomeXMLFileRecorder)recorder).setPreparedHomeStructure(preparedStructureFile);
+              }
+              recorder.writeHome(getHome().clone(), exportedFile);
+              return null;
+            } finally {
+              if (exportPreparer != null) {
+                exportPreparer.exportCompleted();
+              }
+            }
           }
         };
         ThreadedTaskController.ExceptionHandler exceptionHandler = 
@@ -178,10 +233,7 @@ public class ExportXMLOBJPlugin extends Plugin {
     }
     
     protected HomeRecorder getHomeRecorder() {
-      return new HomeXMLFileRecorder(9, 
-          HomeXMLFileRecorder.INCLUDE_HOME_STRUCTURE 
-          | HomeXMLFileRecorder.INCLUDE_ICONS
-          | HomeXMLFileRecorder.CONVERT_MODELS_TO_OBJ_FORMAT);
+      return createHomeRecorder();
     }
   }
 }
@@ -0,0 +1,396 @@
+/*
+ * HomeExportPreparer.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxmlobj;
+
+import java.awt.EventQueue;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.eteks.sweethome3d.model.CollectionEvent;
+import com.eteks.sweethome3d.model.CollectionListener;
+import com.eteks.sweethome3d.model.Content;
+import com.eteks.sweethome3d.model.Home;
+import com.eteks.sweethome3d.model.HomeFurnitureGroup;
+import com.eteks.sweethome3d.model.HomePieceOfFurniture;
+import com.eteks.sweethome3d.model.Label;
+import com.eteks.sweethome3d.model.Level;
+import com.eteks.sweethome3d.model.RecorderException;
+import com.eteks.sweethome3d.model.Room;
+import com.eteks.sweethome3d.model.Wall;
+import com.eteks.sweethome3d.plugin.exportxml.HomeXMLFileRecorder;
+
+/**
+ * Listens to the changes of a home to convert its new models and to build its structure
+ * in a low priority background thread, so that a later export mostly reuses prepared data.
+ * Preparation starts only once home wasn't modified for a while, and it's abandoned
+ * as soon as a new modification happens.
+ */
+class HomeExportPreparer {
+  private static final long PREPARATION_DELAY = 2000; // ms
+  private static final long PAUSE_BETWEEN_MODELS = 50; // ms
+
+  private final Home                     home;
+  private final HomeXMLFileRecorder      recorder;
+  private final ScheduledExecutorService executor;
+  private final PropertyChangeListener   structureChangeListener;
+  private final PropertyChangeListener   pieceChangeListener;
+  private final CollectionListener<HomePieceOfFurniture> furnitureListener;
+  private final CollectionListener<Wall>  wallsListener;
+  private final CollectionListener<Room>  roomsListener;
+  private final CollectionListener<Level> levelsListener;
+  private final CollectionListener<Label> labelsListener;
+
+  private ScheduledFuture<?> scheduledPreparation;
+  // Counters updated in Event Dispatch Thread
+  private volatile int       changeCount;
+  private volatile int       structureChangeCount;
+
+  private final Set<Content> preparedModels;
+  private File               preparedStructureFile;
+  private int                preparedStructureChangeCount = -1;
+  private int                runningExportCount;
+  private final List<File>   obsoleteStructureFiles;
+
+  /**
+   * Creates a preparer which will prepare exports of <code>home</code> with the given <code>recorder</code>,
+   * expected to use an export cache.
+   */
+  public HomeExportPreparer(Home home, HomeXMLFileRecorder recorder) {
+    this.home = home;
+    this.recorder = recorder;
+    this.preparedModels = new HashSet<Content>();
+    this.obsoleteStructureFiles = new ArrayList<File>();
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Export preparation");
+          thread.setPriority(Thread.MIN_PRIORITY);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+    this.structureChangeListener = new PropertyChangeListener() {
+        public void propertyChange(PropertyChangeEvent ev) {
+          homeChanged(true);
+        }
+      };
+    this.pieceChangeListener = new PropertyChangeListener() {
+        public void propertyChange(PropertyChangeEvent ev) {
+          // Doors and windows cut walls, and staircases cut floors and ceilings
+          homeChanged(HomePieceOfFurniture.Property.STAIRCASE_CUT_OUT_SHAPE.name().equals(ev.getPropertyName())
+              || (ev.getSource() instanceof HomePieceOfFurniture
+                  && isStructurePiece((HomePieceOfFurniture)ev.getSource())));
+        }
+      };
+    this.furnitureListener = new CollectionListener<HomePieceOfFurniture>() {
+        public void collectionChanged(CollectionEvent<HomePieceOfFurniture> ev) {
+          HomePieceOfFurniture piece = ev.getItem();
+          if (ev.getType() == CollectionEvent.Type.ADD) {
+            addPieceListener(piece);
+          } else {
+            removePieceListener(piece);
+          }
+          homeChanged(isStructurePiece(piece));
+        }
+      };
+    this.wallsListener = new StructureItemsListener<Wall>();
+    this.roomsListener = new StructureItemsListener<Room>();
+    this.levelsListener = new StructureItemsListener<Level>();
+    this.labelsListener = new StructureItemsListener<Label>();
+  }
+
+  /**
+   * Starts to listen to home changes and schedules a first preparation.
+   */
+  public void start() {
+    for (HomePieceOfFurniture piece : this.home.getFurniture()) {
+      addPieceListener(piece);
+    }
+    for (Wall wall : this.home.getWalls()) {
+      wall.addPropertyChangeListener(this.structureChangeListener);
+    }
+    for (Room room : this.home.getRooms()) {
+      room.addPropertyChangeListener(this.structureChangeListener);
+    }
+    for (Level level : this.home.getLevels()) {
+      level.addPropertyChangeListener(this.structureChangeListener);
+    }
+    for (Label label : this.home.getLabels()) {
+      label.addPropertyChangeListener(this.structureChangeListener);
+    }
+    this.home.getEnvironment().addPropertyChangeListener(this.structureChangeListener);
+    this.home.addFurnitureListener(this.furnitureListener);
+    this.home.addWallsListener(this.wallsListener);
+    this.home.addRoomsListener(this.roomsListener);
+    this.home.addLevelsListener(this.levelsListener);
+    this.home.addLabelsListener(this.labelsListener);
+    homeChanged(true);
+  }
+
+  /**
+   * Stops to listen to home changes and deletes prepared data.
+   */
+  public void stop() {
+    this.home.removeFurnitureListener(this.furnitureListener);
+    this.home.removeWallsListener(this.wallsListener);
+    this.home.removeRoomsListener(this.roomsListener);
+    this.home.removeLevelsListener(this.levelsListener);
+    this.home.removeLabelsListener(this.labelsListener);
+    this.home.getEnvironment().removePropertyChangeListener(this.structureChangeListener);
+    for (HomePieceOfFurniture piece : this.home.getFurniture()) {
+      removePieceListener(piece);
+    }
+    for (Wall wall : this.home.getWalls()) {
+      wall.removePropertyChangeListener(this.structureChangeListener);
+    }
+    for (Room room : this.home.getRooms()) {
+      room.removePropertyChangeListener(this.structureChangeListener);
+    }
+    for (Level level : this.home.getLevels()) {
+      level.removePropertyChangeListener(this.structureChangeListener);
+    }
+    for (Label label : this.home.getLabels()) {
+      label.removePropertyChangeListener(this.structureChangeListener);
+    }
+    this.executor.shutdownNow();
+    synchronized (this) {
+      this.obsoleteStructureFiles.add(this.preparedStructureFile);
+      this.preparedStructureFile = null;
+      deleteObsoleteStructureFiles();
+    }
+  }
+
+  /**
+   * Returns the home structure file prepared for the current state of home, or <code>null</code>
+   * if it's not available. The returned file won't be deleted before {@link #exportCompleted()} is called.
+   * This method must be called from Event Dispatch Thread.
+   */
+  public synchronized File startExport() {
+    this.runningExportCount++;
+    if (this.preparedStructureChangeCount == this.structureChangeCount) {
+      return this.preparedStructureFile;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Notifies this preparer that an export started with {@link #startExport()} is completed.
+   */
+  public synchronized void exportCompleted() {
+    this.runningExportCount--;
+    deleteObsoleteStructureFiles();
+  }
+
+  private void deleteObsoleteStructureFiles() {
+    if (this.runningExportCount == 0) {
+      for (File file : this.obsoleteStructureFiles) {
+        if (file != null) {
+          file.delete();
+        }
+      }
+      this.obsoleteStructureFiles.clear();
+    }
+  }
+
+  private void addPieceListener(HomePieceOfFurniture piece) {
+    piece.addPropertyChangeListener(this.pieceChangeListener);
+    if (piece instanceof HomeFurnitureGroup) {
+      for (HomePieceOfFurniture childPiece : ((HomeFurnitureGroup)piece).getFurniture()) {
+        addPieceListener(childPiece);
+      }
+    }
+  }
+
+  private void removePieceListener(HomePieceOfFurniture piece) {
+    piece.removePropertyChangeListener(this.pieceChangeListener);
+    if (piece instanceof HomeFurnitureGroup) {
+      for (HomePieceOfFurniture childPiece : ((HomeFurnitureGroup)piece).getFurniture()) {
+        removePieceListener(childPiece);
+      }
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the given piece or one of its children changes home structure,
+   * i.e. if it's a door or a window, or a staircase.
+   */
+  private boolean isStructurePiece(HomePieceOfFurniture piece) {
+    if (piece instanceof HomeFurnitureGroup) {
+      for (HomePieceOfFurniture childPiece : ((HomeFurnitureGroup)piece).getFurniture()) {
+        if (isStructurePiece(childPiece)) {
+          return true;
+        }
+      }
+      return false;
+    } else {
+      return piece.isDoorOrWindow()
+          || piece.getStaircaseCutOutShape() != null;
+    }
+  }
+
+  /**
+   * Postpones preparation after a home change.
+   */
+  private void homeChanged(boolean structureChanged) {
+    this.changeCount++;
+    if (structureChanged) {
+      this.structureChangeCount = this.changeCount;
+    }
+    if (this.scheduledPreparation != null) {
+      this.scheduledPreparation.cancel(false);
+    }
+    if (!this.executor.isShutdown()) {
+      this.scheduledPreparation = this.executor.schedule(new Runnable() {
+          public void run() {
+            prepareExport();
+          }
+        }, PREPARATION_DELAY, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Converts the models not prepared yet and builds home structure if it changed.
+   * Called in preparation thread.
+   */
+  private void prepareExport() {
+    final int [] changeCounts = new int [2];
+    final List<Content> models = new ArrayList<Content>();
+    final Home [] clonedHome = new Home [1];
+    try {
+      EventQueue.invokeAndWait(new Runnable() {
+          public void run() {
+            changeCounts [0] = changeCount;
+            changeCounts [1] = structureChangeCount;
+            collectModels(home.getFurniture(), models);
+            synchronized (HomeExportPreparer.this) {
+              if (preparedStructureChangeCount != structureChangeCount) {
+                clonedHome [0] = home.clone();
+              }
+            }
+          }
+        });
+    } catch (InterruptedException ex) {
+      return;
+    } catch (InvocationTargetException ex) {
+      ex.printStackTrace();
+      return;
+    }
+
+    try {
+      for (Content model : models) {
+        if (this.changeCount != changeCounts [0]) {
+          // Home changed again and a new preparation is scheduled
+          return;
+        }
+        if (!this.preparedModels.contains(model)) {
+          this.recorder.prepareModel(model);
+          this.preparedModels.add(model);
+          // Leave time to other threads
+          Thread.sleep(PAUSE_BETWEEN_MODELS);
+        }
+      }
+
+      if (clonedHome [0] != null
+          && this.structureChangeCount == changeCounts [1]) {
+        File structureFile = this.recorder.prepareHomeStructure(clonedHome [0]);
+        synchronized (this) {
+          if (this.structureChangeCount == changeCounts [1]) {
+            this.obsoleteStructureFiles.add(this.preparedStructureFile);
+            this.preparedStructureFile = structureFile;
+            this.preparedStructureChangeCount = changeCounts [1];
+          } else {
+            this.obsoleteStructureFiles.add(structureFile);
+          }
+          deleteObsoleteStructureFiles();
+        }
+      }
+    } catch (InterruptedException ex) {
+      // Preparation stopped
+    } catch (RecorderException ex) {
+      // Export will try again
+      ex.printStackTrace();
+    }
+  }
+
+  private void collectModels(List<HomePieceOfFurniture> furniture, List<Content> models) {
+    for (HomePieceOfFurniture piece : furniture) {
+      if (piece instanceof HomeFurnitureGroup) {
+        collectModels(((HomeFurnitureGroup)piece).getFurniture(), models);
+      } else if (piece.getModel() != null) {
+        models.add(piece.getModel());
+      }
+    }
+  }
+
+  /**
+   * A listener which attaches the structure listener to added items.
+   */
+  private class StructureItemsListener<T> implements CollectionListener<T> {
+    public void collectionChanged(CollectionEvent<T> ev) {
+      Object item = ev.getItem();
+      if (ev.getType() == CollectionEvent.Type.ADD) {
+        addStructureItemListener(item, true);
+      } else {
+        addStructureItemListener(item, false);
+      }
+      homeChanged(true);
+    }
+
+    private void addStructureItemListener(Object item, boolean add) {
+      if (item instanceof Wall) {
+        if (add) {
+          ((Wall)item).addPropertyChangeListener(structureChangeListener);
+        } else {
+          ((Wall)item).removePropertyChangeListener(structureChangeListener);
+        }
+      } else if (item instanceof Room) {
+        if (add) {
+          ((Room)item).addPropertyChangeListener(structureChangeListener);
+        } else {
+          ((Room)item).removePropertyChangeListener(structureChangeListener);
+        }
+      } else if (item instanceof Level) {
+        if (add) {
+          ((Level)item).addPropertyChangeListener(structureChangeListener);
+        } else {
+          ((Level)item).removePropertyChangeListener(structureChangeListener);
+        }
+      } else if (item instanceof Label) {
+        if (add) {
+          ((Label)item).addPropertyChangeListener(structureChangeListener);
+        } else {
+          ((Label)item).removePropertyChangeListener(structureChangeListener);
+        }
+      }
+    }
+  }
+}
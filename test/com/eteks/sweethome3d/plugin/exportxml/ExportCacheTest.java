@@ -0,0 +1,85 @@
+/*
+ * ExportCacheTest.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the eviction of converted models from {@link ExportCache}.
+ */
+public class ExportCacheTest extends TestCase {
+  /**
+   * Tests that the files of an evicted model are kept until the export using it releases it.
+   */
+  public void testLeasedModelEviction() throws IOException {
+    ExportCache cache = new ExportCache(150, 100);
+    ConvertedModel leasedModel = createConvertedModel(100);
+    cache.putConvertedModel("leased", leasedModel);
+    ConvertedModelLeases leases = new ConvertedModelLeases(cache);
+    leases.add(leasedModel);
+
+    ConvertedModel otherModel = createConvertedModel(100);
+    cache.putConvertedModel("other", otherModel);
+    cache.releaseConvertedModel(otherModel);
+    assertEquals("Leased model not evicted", 1, cache.getConvertedModelCount());
+    assertTrue("Leased model deleted", leasedModel.getZipFile().exists());
+
+    leases.releaseAll();
+    assertFalse("Released model not deleted", leasedModel.getZipFile().exists());
+    cache.clear();
+    assertFalse("Unused model not deleted", otherModel.getZipFile().exists());
+  }
+
+  /**
+   * Tests that the size of models removed from cache is computed with their size when they were added.
+   */
+  public void testModelsSize() throws IOException {
+    ExportCache cache = new ExportCache(150, 100);
+    ConvertedModel deletedModel = createConvertedModel(100);
+    cache.putConvertedModel("deleted", deletedModel);
+    cache.releaseConvertedModel(deletedModel);
+    ConvertedModel model1 = createConvertedModel(40);
+    cache.putConvertedModel("model1", model1);
+    cache.releaseConvertedModel(model1);
+    deletedModel.getZipFile().delete();
+    assertNull("Deleted model returned", cache.getConvertedModel("deleted"));
+
+    ConvertedModel model2 = createConvertedModel(100);
+    cache.putConvertedModel("model2", model2);
+    cache.releaseConvertedModel(model2);
+    assertEquals("Model evicted", 2, cache.getConvertedModelCount());
+    assertSame("Model not cached", model1, cache.getConvertedModel("model1"));
+    cache.releaseConvertedModel(model1);
+    cache.clear();
+    assertFalse("Unused model not deleted", model1.getZipFile().exists());
+  }
+
+  private static ConvertedModel createConvertedModel(int size) throws IOException {
+    File zipFile = File.createTempFile("model", ".zip");
+    FileOutputStream out = new FileOutputStream(zipFile);
+    out.write(new byte [size]);
+    out.close();
+    return new ConvertedModel(zipFile, "model.obj", null);
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * HiddenFacesRemoverTest.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.TriangleArray;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the triangles removed by {@link HiddenFacesRemover}.
+ */
+public class HiddenFacesRemoverTest extends TestCase {
+  /**
+   * Tests that only triangles facing down at ground level out of basement levels are removed.
+   */
+  public void testGroundFaces() {
+    Shape3D groundFloor = createDownwardTriangle(0);
+    Shape3D basementCeiling = createDownwardTriangle(0);
+    Shape3D basementFloor = createDownwardTriangle(-250);
+    Shape3D underGroundFloor = createDownwardTriangle(-50);
+
+    HiddenFacesRemover remover = new HiddenFacesRemover();
+    remover.addNode(groundFloor, false);
+    remover.addNode(basementCeiling, false, true);
+    remover.addNode(basementFloor, false, true);
+    remover.addNode(underGroundFloor, false);
+    assertEquals("Wrong count of removed triangles", 1, remover.removeHiddenFaces());
+
+    assertEquals("Ground floor bottom not removed", 0, groundFloor.numGeometries());
+    assertEquals("Basement ceiling removed", 1, basementCeiling.numGeometries());
+    assertEquals("Basement floor removed", 1, basementFloor.numGeometries());
+    assertEquals("Triangle under ground removed", 1, underGroundFloor.numGeometries());
+  }
+
+  /**
+   * Tests that coincident faces of solid objects which face each other are removed.
+   */
+  public void testCoincidentFaces() {
+    Shape3D lowerWallTop = new Shape3D(createTriangle(new float [] {0, 250, 0,  0, 250, 100,  100, 250, 0}));
+    Shape3D upperWallBottom = new Shape3D(createTriangle(new float [] {0, 250, 0,  100, 250, 0,  0, 250, 100}));
+
+    HiddenFacesRemover remover = new HiddenFacesRemover();
+    remover.addNode(lowerWallTop, true);
+    remover.addNode(upperWallBottom, true);
+    assertEquals("Wrong count of removed triangles", 2, remover.removeHiddenFaces());
+    assertEquals("Wall top not removed", 0, lowerWallTop.numGeometries());
+    assertEquals("Wall bottom not removed", 0, upperWallBottom.numGeometries());
+  }
+
+  private static Shape3D createDownwardTriangle(float y) {
+    return new Shape3D(createTriangle(new float [] {0, y, 0,  100, y, 0,  0, y, 100}));
+  }
+
+  private static TriangleArray createTriangle(float [] coordinates) {
+    TriangleArray triangle = new TriangleArray(3, GeometryArray.COORDINATES);
+    triangle.setCoordinates(0, coordinates);
+    return triangle;
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * HomeBinaryWriterTest.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.eteks.sweethome3d.io.XMLWriter;
+import com.eteks.sweethome3d.model.CatalogPieceOfFurniture;
+import com.eteks.sweethome3d.model.Home;
+import com.eteks.sweethome3d.model.HomePieceOfFurniture;
+import com.eteks.sweethome3d.model.Label;
+import com.eteks.sweethome3d.model.Level;
+import com.eteks.sweethome3d.model.Room;
+import com.eteks.sweethome3d.model.Wall;
+import com.eteks.sweethome3d.tools.URLContent;
+
+/**
+ * Tests that {@link HomeBinaryWriter} encodes the same elements and attributes as XML.
+ */
+public class HomeBinaryWriterTest extends TestCase {
+  /**
+   * Tests that the elements decoded from a binary home written during the same traversal
+   * as a XML home match the elements of that XML home.
+   */
+  public void testXMLRoundTrip() throws Exception {
+    Home home = createHome();
+    ByteArrayOutputStream xmlOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream binaryOut = new ByteArrayOutputStream();
+    HomeBinaryWriter writer = new HomeBinaryWriter(binaryOut, new XMLWriter(xmlOut));
+    new HomeXMLOptionalExporter(home, "Home", null, 0).writeElement(writer, home);
+    writer.flush();
+
+    Element xmlRoot = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+        new ByteArrayInputStream(xmlOut.toByteArray())).getDocumentElement();
+    HomeBinaryReader.Element binaryRoot = HomeBinaryReader.read(new ByteArrayInputStream(binaryOut.toByteArray()));
+    assertElementEquals(xmlRoot, binaryRoot);
+    assertTrue("Binary home not smaller", binaryOut.size() < xmlOut.size());
+  }
+
+  private Home createHome() throws Exception {
+    Home home = new Home();
+    Level level = new Level("Ground floor", 0, 12, 250);
+    home.addLevel(level);
+    Wall wall1 = new Wall(0, 0, 500, 0, 10, 250);
+    Wall wall2 = new Wall(500, 0, 500, 400, 10, 250);
+    wall1.setWallAtEnd(wall2);
+    wall2.setWallAtStart(wall1);
+    wall1.setLeftSideColor(0xFF808080);
+    for (Wall wall : new Wall [] {wall1, wall2}) {
+      wall.setLevel(level);
+      home.addWall(wall);
+    }
+    Room room = new Room(new float [][] {{0, 0}, {500, 0}, {500, 400}, {0, 400}});
+    room.setName("Living room");
+    room.setFloorColor(0xFFC0A080);
+    room.setLevel(level);
+    home.addRoom(room);
+    URLContent model = new URLContent(new URL("http://www.example.com/models/chair.obj"));
+    for (int i = 0; i < 20; i++) {
+      HomePieceOfFurniture piece = new HomePieceOfFurniture(
+          new CatalogPieceOfFurniture("Chair " + (i % 3), null, model, 45.5f, 50, 90, true, false));
+      piece.setX(20 * i + 0.25f);
+      piece.setY(100);
+      piece.setAngle((float)Math.PI / (i + 1));
+      piece.setModelRotation(new float [][] {{0, 0, 1}, {0, 1, 0}, {-1, 0, 0}});
+      piece.setVisible(i % 5 != 0);
+      piece.setLevel(level);
+      home.addPieceOfFurniture(piece);
+    }
+    Label label = new Label("Entrance & <hall>", 250, 300);
+    label.setLevel(level);
+    home.addLabel(label);
+    return home;
+  }
+
+  /**
+   * Asserts that the given elements have the same name, attributes, text and children.
+   */
+  private void assertElementEquals(Element xmlElement, HomeBinaryReader.Element binaryElement) {
+    assertEquals("Wrong element name", xmlElement.getTagName(), binaryElement.getName());
+    Map<String, Object> attributes = binaryElement.getAttributes();
+    assertEquals("Wrong attribute count in " + xmlElement.getTagName(),
+        xmlElement.getAttributes().getLength(), attributes.size());
+    for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+      String name = attribute.getKey();
+      assertTrue("Missing attribute " + name, xmlElement.hasAttribute(name));
+      assertAttributeEquals(xmlElement.getTagName() + " " + name,
+          name, xmlElement.getAttribute(name), attribute.getValue());
+    }
+
+    List<Element> xmlChildren = new ArrayList<Element>();
+    StringBuilder xmlText = new StringBuilder();
+    NodeList nodes = xmlElement.getChildNodes();
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Node node = nodes.item(i);
+      if (node instanceof Element) {
+        xmlChildren.add((Element)node);
+      } else if (node.getNodeType() == Node.TEXT_NODE
+          || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+        xmlText.append(node.getNodeValue());
+      }
+    }
+    if (binaryElement.getText() != null) {
+      assertEquals("Wrong text in " + xmlElement.getTagName(), binaryElement.getText(), xmlText.toString());
+    } else {
+      assertEquals("Unexpected text in " + xmlElement.getTagName(), "", xmlText.toString().trim());
+    }
+    List<HomeBinaryReader.Element> binaryChildren = binaryElement.getChildren();
+    assertEquals("Wrong children count in " + xmlElement.getTagName(), xmlChildren.size(), binaryChildren.size());
+    for (int i = 0; i < xmlChildren.size(); i++) {
+      assertElementEquals(xmlChildren.get(i), binaryChildren.get(i));
+    }
+  }
+
+  private void assertAttributeEquals(String message, String name, String xmlValue, Object binaryValue) {
+    if (binaryValue instanceof String) {
+      assertEquals(message, xmlValue, binaryValue);
+    } else if (binaryValue instanceof Float) {
+      assertEquals(message, Float.parseFloat(xmlValue), ((Float)binaryValue).floatValue());
+    } else if (binaryValue instanceof Integer) {
+      // Colors are written in hexadecimal in XML
+      int xmlInteger = name.toLowerCase().endsWith("color")
+          ? (int)Long.parseLong(xmlValue, 16)
+          : Integer.parseInt(xmlValue);
+      assertEquals(message, xmlInteger, ((Integer)binaryValue).intValue());
+    } else if (binaryValue instanceof Long) {
+      assertEquals(message, Long.parseLong(xmlValue), ((Long)binaryValue).longValue());
+    } else if (binaryValue instanceof Boolean) {
+      assertEquals(message, Boolean.parseBoolean(xmlValue), ((Boolean)binaryValue).booleanValue());
+    } else if (binaryValue instanceof float []) {
+      String [] xmlValues = xmlValue.split(" ");
+      float [] binaryValues = (float [])binaryValue;
+      assertEquals(message, xmlValues.length, binaryValues.length);
+      for (int i = 0; i < binaryValues.length; i++) {
+        assertEquals(message, Float.parseFloat(xmlValues [i]), binaryValues [i]);
+      }
+    } else {
+      fail(message + " has an unexpected value " + binaryValue);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * HomeXMLFileRecorderTest.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.eteks.sweethome3d.model.CatalogPieceOfFurniture;
+import com.eteks.sweethome3d.model.Content;
+import com.eteks.sweethome3d.model.Home;
+import com.eteks.sweethome3d.model.HomeMaterial;
+import com.eteks.sweethome3d.model.HomePieceOfFurniture;
+import com.eteks.sweethome3d.model.RecorderException;
+import com.eteks.sweethome3d.tools.TemporaryURLContent;
+
+/**
+ * Tests {@link HomeXMLFileRecorder} exports.
+ */
+public class HomeXMLFileRecorderTest extends TestCase {
+  /**
+   * Tests that a model prepared before home is saved is reused by the export of that home.
+   */
+  public void testPreparedModelReuse() throws IOException, RecorderException {
+    File modelFile = File.createTempFile("model", ".zip");
+    File exportedFile = File.createTempFile("home", ".zip");
+    try {
+      ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(modelFile));
+      writeZipEntry(zipOut, "com/eteks/test/box",
+          "mtllib box.mtl\nv 0 0 0\nv 1 0 0\nv 0 1 0\nusemtl red\nf 1 2 3\n");
+      writeZipEntry(zipOut, "com/eteks/test/box.mtl", "newmtl red\nKd 1 0 0\n");
+      zipOut.close();
+      // Imported models are zip entries stored in a package like directory before home is saved
+      Content model = new TemporaryURLContent(new URL("jar:" + modelFile.toURI().toURL() + "!/com/eteks/test/box"));
+      Home home = new Home();
+      home.addPieceOfFurniture(new HomePieceOfFurniture(
+          new CatalogPieceOfFurniture("Box", null, model, 100, 100, 100, true, false)));
+
+      ExportCache exportCache = new ExportCache();
+      HomeXMLFileRecorder recorder = new HomeXMLFileRecorder(0, HomeXMLFileRecorder.CONVERT_MODELS_TO_OBJ_FORMAT);
+      recorder.setExportCache(exportCache);
+      recorder.prepareModel(model);
+      assertEquals("Model not prepared", 1, exportCache.getConvertedModelCount());
+
+      recorder.writeHome(home, exportedFile.getPath());
+      assertEquals("Prepared model not reused", 1, exportCache.getConvertedModelCount());
+      assertTrue("Converted model not exported", containsEntry(exportedFile, "/model.obj"));
+      exportCache.clear();
+    } finally {
+      modelFile.delete();
+      exportedFile.delete();
+    }
+  }
+
+  /**
+   * Tests that static furniture exported in a merged model is written without its own model, texture and materials.
+   */
+  public void testMergedStaticFurniture() throws Exception {
+    File modelFile = File.createTempFile("model", ".zip");
+    File exportedFile = File.createTempFile("home", ".zip");
+    try {
+      ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(modelFile));
+      writeZipEntry(zipOut, "com/eteks/test/box",
+          "mtllib box.mtl\nv 0 0 0\nv 1 0 0\nv 0 1 0\nusemtl red\nf 1 2 3\n");
+      writeZipEntry(zipOut, "com/eteks/test/box.mtl", "newmtl red\nKd 1 0 0\n");
+      zipOut.close();
+      Content model = new TemporaryURLContent(new URL("jar:" + modelFile.toURI().toURL() + "!/com/eteks/test/box"));
+      Home home = new Home();
+      HomeMaterial [] materials = {new HomeMaterial("red", 0xFF00FF00, null, 0.5f)};
+      HomePieceOfFurniture staticPiece = new HomePieceOfFurniture(
+          new CatalogPieceOfFurniture("Table", null, model, 100, 100, 100, false, false));
+      staticPiece.setModelMaterials(materials);
+      home.addPieceOfFurniture(staticPiece);
+      HomePieceOfFurniture movablePiece = new HomePieceOfFurniture(
+          new CatalogPieceOfFurniture("Chair", null, model, 100, 100, 100, true, false));
+      movablePiece.setModelMaterials(materials);
+      home.addPieceOfFurniture(movablePiece);
+
+      new HomeXMLFileRecorder(0, HomeXMLFileRecorder.INCLUDE_VIEWER_DATA | HomeXMLFileRecorder.MERGE_STATIC_FURNITURE)
+          .writeHome(home, exportedFile.getPath());
+      assertTrue("Merged model not exported", containsEntry(exportedFile, "HomeFurniture/home/Furniture.obj"));
+      ZipFile zip = new ZipFile(exportedFile);
+      try {
+        NodeList pieces = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+            zip.getInputStream(zip.getEntry("Home.xml"))).getElementsByTagName("pieceOfFurniture");
+        assertEquals("Wrong count of pieces", 2, pieces.getLength());
+        Element staticElement = (Element)pieces.item(0);
+        assertEquals("Wrong merged model", "HomeFurniture/home/Furniture.obj", staticElement.getAttribute("mergedModel"));
+        assertFalse("Model of merged piece exported", staticElement.hasAttribute("model"));
+        assertEquals("Materials of merged piece exported", 0, staticElement.getElementsByTagName("material").getLength());
+        assertEquals("Texture of merged piece exported", 0, staticElement.getElementsByTagName("texture").getLength());
+        Element movableElement = (Element)pieces.item(1);
+        assertFalse("Movable piece merged", movableElement.hasAttribute("mergedModel"));
+        assertTrue("Model of movable piece not exported", movableElement.hasAttribute("model"));
+        assertEquals("Materials of movable piece not exported", 1, movableElement.getElementsByTagName("material").getLength());
+      } finally {
+        zip.close();
+      }
+    } finally {
+      modelFile.delete();
+      exportedFile.delete();
+    }
+  }
+
+  private static void writeZipEntry(ZipOutputStream zipOut, String entryName, String text) throws IOException {
+    zipOut.putNextEntry(new ZipEntry(entryName));
+    zipOut.write(text.getBytes("UTF-8"));
+    zipOut.closeEntry();
+  }
+
+  private static boolean containsEntry(File zipFile, String entryNameSuffix) throws IOException {
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      for (Enumeration<? extends ZipEntry> enumeration = zip.entries(); enumeration.hasMoreElements(); ) {
+        if (enumeration.nextElement().getName().endsWith(entryNameSuffix)) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      zip.close();
+    }
+  }
+}
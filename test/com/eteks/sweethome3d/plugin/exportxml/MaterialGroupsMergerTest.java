@@ -0,0 +1,151 @@
+/*
+ * MaterialGroupsMergerTest.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the OBJ models rewritten by {@link MaterialGroupsMerger}.
+ */
+public class MaterialGroupsMergerTest extends TestCase {
+  /**
+   * Tests that faces, lines and points are grouped by material with absolute indices.
+   */
+  public void testMergeGroups() throws IOException {
+    File modelFile = File.createTempFile("model", ".zip");
+    File mergedModelFile = null;
+    try {
+      ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(modelFile));
+      writeZipEntry(zipOut, "model.obj",
+            "mtllib model.mtl\n"
+          + "o model\n"
+          + "v 0 0 0\n"
+          + "v 1 0 0\n"
+          + "v 0 1 0\n"
+          + "vt 0 0\n"
+          + "vt 1 0\n"
+          + "vt 0 1\n"
+          + "vn 0 0 1\n"
+          + "g noMaterial\n"
+          + "f 1 2 3\n"
+          + "usemtl red\n"
+          + "s 1\n"
+          + "f -3//-1 -2//-1 -1//-1\n"
+          + "  v 1 1 0\n"
+          + "vt 1 1\n"
+          + "usemtl blue\n"
+          + "g part\n"
+          + "f -4/-4 -3/-3 -1/-1\n"
+          + "l 1 -1\n"
+          + "usemtl red\n"
+          + "s off\n"
+          + "p -1\n"
+          + "f 2/2/1 3/3/1 4/4/1\n");
+      writeZipEntry(zipOut, "model.mtl", "newmtl red\nKd 1 0 0\nnewmtl blue\nKd 0 0 1\n");
+      zipOut.close();
+
+      mergedModelFile = MaterialGroupsMerger.mergeGroups(modelFile, "model.obj");
+      assertFalse("Source model not deleted", modelFile.exists());
+      assertEquals("Wrong merged model",
+            "mtllib model.mtl\n"
+          + "v 0 0 0\n"
+          + "v 1 0 0\n"
+          + "v 0 1 0\n"
+          + "vt 0 0\n"
+          + "vt 1 0\n"
+          + "vt 0 1\n"
+          + "vn 0 0 1\n"
+          + "v 1 1 0\n"
+          + "vt 1 1\n"
+          + "g default\n"
+          + "s off\n"
+          + "f 1 2 3\n"
+          + "g red\n"
+          + "usemtl red\n"
+          + "s 1\n"
+          + "f 1//1 2//1 3//1\n"
+          + "s off\n"
+          + "p 4\n"
+          + "f 2/2/1 3/3/1 4/4/1\n"
+          + "g blue\n"
+          + "usemtl blue\n"
+          + "s 1\n"
+          + "f 1/1 2/2 4/4\n"
+          + "l 1 4\n",
+          readZipEntry(mergedModelFile, "model.obj"));
+      assertEquals("Other entry modified", "newmtl red\nKd 1 0 0\nnewmtl blue\nKd 0 0 1\n",
+          readZipEntry(mergedModelFile, "model.mtl"));
+    } finally {
+      modelFile.delete();
+      if (mergedModelFile != null) {
+        mergedModelFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Tests that a face with an index which isn't a number is rejected.
+   */
+  public void testInvalidFace() throws IOException {
+    File modelFile = File.createTempFile("model", ".zip");
+    try {
+      ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(modelFile));
+      writeZipEntry(zipOut, "model.obj", "v 0 0 0\nf 1/a 1 1\n");
+      zipOut.close();
+      MaterialGroupsMerger.mergeGroups(modelFile, "model.obj");
+      fail("Invalid face accepted");
+    } catch (IOException ex) {
+      // Expected exception
+    } finally {
+      modelFile.delete();
+    }
+  }
+
+  private static void writeZipEntry(ZipOutputStream zipOut, String entryName, String text) throws IOException {
+    zipOut.putNextEntry(new ZipEntry(entryName));
+    zipOut.write(text.getBytes("ISO-8859-1"));
+    zipOut.closeEntry();
+  }
+
+  private static String readZipEntry(File file, String entryName) throws IOException {
+    ZipFile zipFile = new ZipFile(file);
+    try {
+      InputStream in = zipFile.getInputStream(zipFile.getEntry(entryName));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte [] buffer = new byte [8192];
+      for (int size; (size = in.read(buffer)) != -1; ) {
+        out.write(buffer, 0, size);
+      }
+      in.close();
+      return new String(out.toByteArray(), "ISO-8859-1");
+    } finally {
+      zipFile.close();
+    }
+  }
+}
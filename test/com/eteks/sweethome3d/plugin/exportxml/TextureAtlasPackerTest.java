@@ -0,0 +1,163 @@
+/*
+ * TextureAtlasPackerTest.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the models updated by {@link TextureAtlasPacker}.
+ */
+public class TextureAtlasPackerTest extends TestCase {
+  private static final String OBJ =
+        "mtllib model.mtl\n"
+      + "v 0 0 0\n"
+      + "v 1 0 0\n"
+      + "v 0 1 0\n"
+      + "vt 0 0\n"
+      + "vt 1 1\n"
+      + "vt 0 0\n"
+      + "vt 1 1\n"
+      + "usemtl big\n"
+      + "f 1/1 2/2 3/1\n"
+      + "usemtl small\n"
+      + "f 1/3 2/4 3/3\n";
+  private static final String MTL =
+        "newmtl big\n"
+      + "map_Kd big.png\n"
+      + "newmtl small\n"
+      + "map_Kd small.png\n";
+
+  /**
+   * Tests that two opaque textures are packed in a JPEG atlas named with a free .jpg name
+   * and that texture coordinates are remapped to their location in the atlas.
+   */
+  public void testOpaqueTexturesPacking() throws IOException {
+    Map<String, byte []> entries = new LinkedHashMap<String, byte []>();
+    entries.put("model.obj", OBJ.getBytes("ISO-8859-1"));
+    entries.put("model.mtl", MTL.getBytes("ISO-8859-1"));
+    entries.put("big.png", getImageBytes(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB)));
+    entries.put("small.png", getImageBytes(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB)));
+    // Existing entry with the name of the first atlas
+    entries.put("atlas0.jpg", new byte [] {1, 2, 3});
+
+    Map<String, byte []> packedEntries = packTextures(entries);
+    assertEquals("Wrong entries", "[model.obj, model.mtl, atlas0.jpg, atlas0_0.jpg]",
+        packedEntries.keySet().toString());
+    assertTrue("Existing entry modified", packedEntries.get("atlas0.jpg").length == 3);
+    assertEquals("Atlas not at JPEG format", "JPEG", getImageFormat(packedEntries.get("atlas0_0.jpg")).toUpperCase());
+    BufferedImage atlas = ImageIO.read(new ByteArrayInputStream(packedEntries.get("atlas0_0.jpg")));
+    assertEquals("Wrong atlas width", 32, atlas.getWidth());
+    assertEquals("Wrong atlas height", 32, atlas.getHeight());
+    assertEquals("Wrong material textures", MTL.replace("big.png", "atlas0_0.jpg").replace("small.png", "atlas0_0.jpg"),
+        new String(packedEntries.get("model.mtl"), "ISO-8859-1"));
+    // Big texture is placed first at (2, 2) and small texture at (22, 2) in the 32 x 32 atlas
+    assertEquals("Wrong texture coordinates", OBJ
+        .replace("vt 0 0\nvt 1 1\nvt 0 0\nvt 1 1\n",
+            "vt 0.0625 0.4375\nvt 0.5625 0.9375\nvt 0.6875 0.6875\nvt 0.9375 0.9375\n"),
+        new String(packedEntries.get("model.obj"), "ISO-8859-1"));
+  }
+
+  /**
+   * Tests that textures with transparency are packed in a PNG atlas.
+   */
+  public void testTranslucentTexturesPacking() throws IOException {
+    Map<String, byte []> entries = new LinkedHashMap<String, byte []>();
+    entries.put("model.obj", OBJ.getBytes("ISO-8859-1"));
+    entries.put("model.mtl", MTL.getBytes("ISO-8859-1"));
+    entries.put("big.png", getImageBytes(new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB)));
+    entries.put("small.png", getImageBytes(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB)));
+
+    Map<String, byte []> packedEntries = packTextures(entries);
+    assertEquals("Wrong entries", "[model.obj, model.mtl, atlas0.png]",
+        packedEntries.keySet().toString());
+    assertEquals("Atlas not at PNG format", "PNG", getImageFormat(packedEntries.get("atlas0.png")).toUpperCase());
+  }
+
+  private static Map<String, byte []> packTextures(Map<String, byte []> entries) throws IOException {
+    File modelFile = File.createTempFile("model", ".zip");
+    File packedModelFile = null;
+    try {
+      ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(modelFile));
+      for (Map.Entry<String, byte []> entry : entries.entrySet()) {
+        zipOut.putNextEntry(new ZipEntry(entry.getKey()));
+        zipOut.write(entry.getValue());
+        zipOut.closeEntry();
+      }
+      zipOut.close();
+
+      packedModelFile = TextureAtlasPacker.packTextures(modelFile, "model.obj");
+      assertNotSame("Textures not packed", modelFile, packedModelFile);
+      Map<String, byte []> packedEntries = new LinkedHashMap<String, byte []>();
+      ZipInputStream zipIn = new ZipInputStream(new FileInputStream(packedModelFile));
+      try {
+        byte [] buffer = new byte [8192];
+        for (ZipEntry entry; (entry = zipIn.getNextEntry()) != null; ) {
+          ByteArrayOutputStream entryOut = new ByteArrayOutputStream();
+          for (int size; (size = zipIn.read(buffer)) != -1; ) {
+            entryOut.write(buffer, 0, size);
+          }
+          packedEntries.put(entry.getName(), entryOut.toByteArray());
+        }
+      } finally {
+        zipIn.close();
+      }
+      return packedEntries;
+    } finally {
+      modelFile.delete();
+      if (packedModelFile != null) {
+        packedModelFile.delete();
+      }
+    }
+  }
+
+  private static byte [] getImageBytes(BufferedImage image) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "PNG", out);
+    return out.toByteArray();
+  }
+
+  private static String getImageFormat(byte [] imageBytes) throws IOException {
+    ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes));
+    try {
+      Iterator<ImageReader> it = ImageIO.getImageReaders(in);
+      return it.hasNext() ? it.next().getFormatName() : null;
+    } finally {
+      in.close();
+    }
+  }
+}
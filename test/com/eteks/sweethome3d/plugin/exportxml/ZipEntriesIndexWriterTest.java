@@ -0,0 +1,242 @@
+/*
+ * ZipEntriesIndexWriterTest.java
+ *
+ * Copyright (c) 2016 Emmanuel PUYBARET / eTeks <info@eteks.com>. All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.eteks.sweethome3d.plugin.exportxml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import com.eteks.sweethome3d.model.CatalogPieceOfFurniture;
+import com.eteks.sweethome3d.model.Content;
+import com.eteks.sweethome3d.model.Home;
+import com.eteks.sweethome3d.model.HomePieceOfFurniture;
+import com.eteks.sweethome3d.model.RecorderException;
+import com.eteks.sweethome3d.tools.TemporaryURLContent;
+
+/**
+ * Tests the zip files indexed by {@link ZipEntriesIndexWriter}.
+ */
+public class ZipEntriesIndexWriterTest extends TestCase {
+  private static final int LOCAL_HEADER_SIGNATURE      = 0x04034b50;
+  private static final int DATA_DESCRIPTOR_SIGNATURE   = 0x08074b50;
+  private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+
+  /**
+   * Tests that a home exported with <code>LAYOUT_FOR_RANGED_LOADING</code> flag is readable
+   * and that its index lists the byte range of each entry.
+   */
+  public void testExportedHomeIndex() throws IOException, RecorderException {
+    File modelFile = File.createTempFile("model", ".zip");
+    File exportedFile = File.createTempFile("home", ".zip");
+    try {
+      ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(modelFile));
+      writeZipEntry(zipOut, "com/eteks/test/box",
+          "mtllib box.mtl\nv 0 0 0\nv 1 0 0\nv 0 1 0\nusemtl red\nf 1 2 3\n", false);
+      writeZipEntry(zipOut, "com/eteks/test/box.mtl", "newmtl red\nKd 1 0 0\n", false);
+      zipOut.close();
+      Content model = new TemporaryURLContent(new URL("jar:" + modelFile.toURI().toURL() + "!/com/eteks/test/box"));
+      Home home = new Home();
+      home.addPieceOfFurniture(new HomePieceOfFurniture(
+          new CatalogPieceOfFurniture("Box", null, model, 100, 100, 100, true, false)));
+
+      new HomeXMLFileRecorder(9, HomeXMLFileRecorder.LAYOUT_FOR_RANGED_LOADING).writeHome(home, exportedFile.getPath());
+      List<String> entryNames = assertIndexedZipFile(exportedFile);
+      assertEquals("Home.xml not first", "Home.xml", entryNames.get(0));
+      assertTrue("Model not exported", entryNames.size() > 1);
+    } finally {
+      modelFile.delete();
+      exportedFile.delete();
+    }
+  }
+
+  /**
+   * Tests the index of a zip file mixing stored entries and deflated entries followed by a data descriptor.
+   */
+  public void testStoredAndDeflatedEntriesIndex() throws IOException {
+    File zipFile = File.createTempFile("entries", ".zip");
+    File indexedFile = File.createTempFile("indexed", ".zip");
+    try {
+      ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(zipFile));
+      writeZipEntry(zipOut, "Home.xml", "<home/>", false);
+      writeZipEntry(zipOut, "stored.txt", "Stored entry", true);
+      writeZipEntry(zipOut, "dir/deflated.txt", "Deflated entry Deflated entry Deflated entry", false);
+      writeZipEntry(zipOut, "dir/stored.txt", "", true);
+      zipOut.close();
+
+      FileOutputStream out = new FileOutputStream(indexedFile);
+      ZipEntriesIndexWriter.copyWithIndex(zipFile, out);
+      out.close();
+      List<String> entryNames = assertIndexedZipFile(indexedFile);
+      assertEquals("Wrong indexed entries", Arrays.asList("Home.xml", "stored.txt", "dir/deflated.txt", "dir/stored.txt"),
+          entryNames);
+    } finally {
+      zipFile.delete();
+      indexedFile.delete();
+    }
+  }
+
+  /**
+   * Asserts that the given file is read with the same entries by <code>ZipFile</code> and <code>ZipInputStream</code>
+   * and that each range listed in its index starts at the local header of an entry and ends after its data.
+   * @return the entry names in the order of the index
+   */
+  private List<String> assertIndexedZipFile(File file) throws IOException {
+    Map<String, byte []> zipFileEntries = new HashMap<String, byte []>();
+    Map<String, ZipEntry> entries = new HashMap<String, ZipEntry>();
+    ZipFile zipFile = new ZipFile(file);
+    try {
+      for (Enumeration<? extends ZipEntry> enumeration = zipFile.entries(); enumeration.hasMoreElements(); ) {
+        ZipEntry entry = enumeration.nextElement();
+        entries.put(entry.getName(), entry);
+        zipFileEntries.put(entry.getName(), readFully(zipFile.getInputStream(entry)));
+      }
+    } finally {
+      zipFile.close();
+    }
+
+    ZipInputStream zipIn = new ZipInputStream(new FileInputStream(file));
+    int zipInputStreamEntryCount = 0;
+    try {
+      for (ZipEntry entry; (entry = zipIn.getNextEntry()) != null; ) {
+        byte [] data = zipFileEntries.get(entry.getName());
+        assertNotNull("Unknown entry " + entry.getName(), data);
+        assertTrue("Different data in " + entry.getName(), Arrays.equals(data, readFully(zipIn)));
+        zipInputStreamEntryCount++;
+      }
+    } finally {
+      zipIn.close();
+    }
+    assertEquals("Different entries count", zipFileEntries.size(), zipInputStreamEntryCount);
+
+    byte [] index = zipFileEntries.get(ZipEntriesIndexWriter.INDEX_ENTRY_NAME);
+    assertNotNull("No index", index);
+    CRC32 crc = new CRC32();
+    crc.update(index);
+    assertEquals("Wrong index CRC", crc.getValue(), entries.get(ZipEntriesIndexWriter.INDEX_ENTRY_NAME).getCrc());
+    String [] lines = new String(index, "UTF-8").split("\n");
+    assertEquals("Wrong index lines count", entries.size() - 1, lines.length);
+    List<String> entryNames = new ArrayList<String>();
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      long previousRecordEnd = -1;
+      for (String line : lines) {
+        String [] fields = line.split(" ", 3);
+        long offset = Long.parseLong(fields [0]);
+        long length = Long.parseLong(fields [1]);
+        String name = fields [2];
+        ZipEntry entry = entries.get(name);
+        assertNotNull("Unknown indexed entry " + name, entry);
+        if (previousRecordEnd == -1) {
+          assertEquals("First entry not at file start", 0, offset);
+        } else if (offset != previousRecordEnd) {
+          // Only the index record may be found between two indexed entries
+          assertEquals("Unexpected bytes before " + name,
+              ZipEntriesIndexWriter.INDEX_ENTRY_NAME, readLocalHeaderName(in, previousRecordEnd));
+        }
+
+        assertEquals("Offset not at local header of " + name, name, readLocalHeaderName(in, offset));
+        in.seek(offset + 6);
+        int flags = readShort(in);
+        in.seek(offset + 26);
+        long dataOffset = offset + 30 + readShort(in) + readShort(in);
+        long recordEnd = dataOffset + entry.getCompressedSize();
+        if ((flags & 0x08) != 0) {
+          in.seek(recordEnd);
+          long signature = readInt(in);
+          int descriptorLength = signature == DATA_DESCRIPTOR_SIGNATURE ? 16 : 12;
+          in.seek(recordEnd + descriptorLength - 12);
+          assertEquals("Wrong data descriptor CRC of " + name, entry.getCrc(), readInt(in));
+          recordEnd += descriptorLength;
+        }
+        assertEquals("Wrong record length of " + name, recordEnd - offset, length);
+        in.seek(recordEnd);
+        long nextSignature = readInt(in);
+        assertTrue("Record of " + name + " not followed by a header",
+            nextSignature == LOCAL_HEADER_SIGNATURE || nextSignature == CENTRAL_DIRECTORY_SIGNATURE);
+        previousRecordEnd = recordEnd;
+        entryNames.add(name);
+      }
+    } finally {
+      in.close();
+    }
+    return entryNames;
+  }
+
+  private static String readLocalHeaderName(RandomAccessFile in, long offset) throws IOException {
+    in.seek(offset);
+    assertEquals("No local header at " + offset, LOCAL_HEADER_SIGNATURE, readInt(in));
+    in.seek(offset + 26);
+    byte [] name = new byte [readShort(in)];
+    in.seek(offset + 30);
+    in.readFully(name);
+    return new String(name, "UTF-8");
+  }
+
+  private static int readShort(RandomAccessFile in) throws IOException {
+    return in.read() | (in.read() << 8);
+  }
+
+  private static long readInt(RandomAccessFile in) throws IOException {
+    return (readShort(in) | ((long)readShort(in) << 16)) & 0xFFFFFFFFL;
+  }
+
+  private static byte [] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte [] buffer = new byte [8192];
+    for (int size; (size = in.read(buffer)) != -1; ) {
+      out.write(buffer, 0, size);
+    }
+    return out.toByteArray();
+  }
+
+  private static void writeZipEntry(ZipOutputStream zipOut, String entryName, String text,
+                                    boolean stored) throws IOException {
+    byte [] data = text.getBytes("UTF-8");
+    ZipEntry entry = new ZipEntry(entryName);
+    if (stored) {
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(data.length);
+      entry.setCrc(crc.getValue());
+    }
+    zipOut.putNextEntry(entry);
+    zipOut.write(data);
+    zipOut.closeEntry();
+  }
+}